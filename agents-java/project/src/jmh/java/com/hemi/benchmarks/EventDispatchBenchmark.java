@@ -0,0 +1,163 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.types.InitializationInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ProcessRecordsInput;
+import com.amazonaws.services.kinesis.model.Record;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hemi.DeadLetterStore;
+import com.hemi.Detector;
+import com.hemi.DetectorTable;
+import com.hemi.EMAAgentRecordProcessor;
+import com.hemi.EventParser;
+import com.hemi.FrequentVisitorDetector;
+import com.hemi.TagSink;
+import com.hemi.metrics.AgentMetrics;
+
+/**
+ * Parsing and dispatch of a representative mix of stream events, most of which are other agents' traffic
+ * that this agent ignores.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EventDispatchBenchmark {
+    private static final int BATCH_SIZE = 100;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final EventParser eventParser = new EventParser("userSessionBecomesActive", "userVisitsStore");
+
+    private List<Record> batch;
+    private EMAAgentRecordProcessor recordProcessor;
+    private ProcessRecordsInput processRecordsInput;
+
+    @Setup
+    public void setUp() {
+        batch = new ArrayList<Record>(BATCH_SIZE);
+        Date arrival = new Date();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            String userSessionId = UUID.randomUUID().toString();
+            batch.add(new Record()
+                    .withSequenceNumber(Integer.toString(i))
+                    .withApproximateArrivalTimestamp(arrival)
+                    .withPartitionKey(userSessionId)
+                    .withData(ByteBuffer.wrap(event(i, userSessionId).getBytes(StandardCharsets.UTF_8))));
+        }
+
+        recordProcessor = new EMAAgentRecordProcessor(new DiscardingTagSink(), null, new AgentMetrics(), null, null,
+                new DeadLetterStore(new File("benchmark-dead-letters.ndjson")),
+                new DetectorTable(Collections.<Detector>singletonList(new FrequentVisitorDetector())));
+        recordProcessor.initialize(new InitializationInput().withShardId("benchmark"));
+        processRecordsInput = new ProcessRecordsInput()
+                .withRecords(batch)
+                .withCheckpointer(new DiscardingCheckpointer())
+                .withMillisBehindLatest(0L);
+    }
+
+    // One visit and one login in ten events; the rest is offer and profile traffic from other agents
+    private static String event(int i, String userSessionId) {
+        switch (i % 10) {
+            case 0:
+                return "{\"eventName\":\"userVisitsStore\",\"eventSource\":\"mobile\",\"storeId\":\"store002\","
+                        + "\"userSessionId\":\"" + userSessionId + "\"}";
+            case 1:
+                return "{\"eventName\":\"userSessionBecomesActive\",\"eventSource\":\"web\",\"userId\":\"user" + i
+                        + "\",\"userSessionId\":\"" + userSessionId + "\"}";
+            case 2:
+            case 3:
+            case 4:
+                return "{\"eventName\":\"userProfile\",\"eventSource\":\"UserProfileManagerAgent\",\"userId\":\"user"
+                        + i + "\",\"userSessionId\":\"" + userSessionId + "\",\"knownTags\":[\"isFrequentVisitor\"],"
+                        + "\"knownStoresVisited\":[\"store001\",\"store002\"]}";
+            default:
+                return "{\"eventName\":\"offer\",\"eventSource\":\"StoreOffersAgent\",\"userSessionId\":\""
+                        + userSessionId + "\",\"offerDescription\":\"$75 off any kayak or personal boat\","
+                        + "\"offerCode\":\"kayak1\",\"offerScore\":15}";
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void streamingParse(Blackhole blackhole) throws IOException {
+        for (Record record : batch) {
+            blackhole.consume(eventParser.parse(record.getData()));
+        }
+    }
+
+    // The decode and tree parse that streamingParse replaced, for comparison
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void treeParse(Blackhole blackhole) throws IOException {
+        for (Record record : batch) {
+            String data = StandardCharsets.UTF_8.decode(record.getData().duplicate()).toString();
+            blackhole.consume(mapper.readTree(data).get("eventName"));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void processRecords() {
+        recordProcessor.processRecords(processRecordsInput);
+    }
+
+    private static class DiscardingTagSink implements TagSink {
+        @Override
+        public void emitTag(String userSessionId, String userId, String tag, long expiresMillis) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class DiscardingCheckpointer implements IRecordProcessorCheckpointer {
+        @Override
+        public void checkpoint() {
+        }
+
+        @Override
+        public void checkpoint(Record record) {
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber) {
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber, long subSequenceNumber) {
+        }
+    }
+}
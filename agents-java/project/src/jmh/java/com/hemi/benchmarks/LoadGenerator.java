@@ -0,0 +1,503 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.benchmarks;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.lib.worker.ShutdownReason;
+import com.amazonaws.services.kinesis.clientlibrary.types.InitializationInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ProcessRecordsInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownInput;
+import com.amazonaws.services.kinesis.model.Record;
+import com.hemi.DeadLetterStore;
+import com.hemi.DetectedEvent;
+import com.hemi.Detector;
+import com.hemi.DetectorTable;
+import com.hemi.EMAAgentRecordProcessor;
+import com.hemi.FrequentVisitorDetector;
+import com.hemi.ProcessingLanes;
+import com.hemi.TagSink;
+import com.hemi.metrics.AgentMetrics;
+import com.hemi.metrics.LatencyHistogram;
+import com.hemi.user.UserProfiles;
+
+/**
+ * A synthetic load for soak testing the agent, as the simulated event generator in tools is for the agent's
+ * demo: a population of authenticated users, each with several sessions, and of anonymous sessions visits stores
+ * and logs in at a fixed rate, and the events go through the agent's record processors in-process.  Every few
+ * seconds, and at the end, it reports the events processed per second, percentiles of the latency from when each
+ * event was due to be sent to when it was processed and to when any tag it called for was emitted, and the heap
+ * left after the latest garbage collection, whose growth over a long run is what leaks look like.
+ *   java -Xmx4g -cp target/agent-benchmarks.jar com.hemi.benchmarks.LoadGenerator --rate 50000 --seconds 3600
+ *
+ * Each shard has its own generator thread and takes an equal share of the sessions and of the rate.  By default
+ * the generator thread hands its batches straight to the shard's record processor; with --stream, it puts records
+ * on a bounded queue which a consumer thread drains in batches, standing in for a Kinesis shard and its worker.
+ * Latencies are measured from when an event was due rather than when it was sent, so a generator which falls
+ * behind, because processing cannot keep up, shows up in them instead of quietly lowering the rate.
+ *
+ * Sessions are numbered, the authenticated users' first, and their ids derived from their numbers, so the
+ * population takes no memory of its own.  A third of the events are by the regulars, the first of the
+ * sessions, and the rest are spread over every session.  Event times run faster than the clock by the time
+ * scale, so that the default windows of a few minutes see frequent visitors within a short run.
+ */
+public class LoadGenerator {
+    private static final long SESSION_ID_BITS = 0x4c6f616447656e00L;
+    private static final String[] STORE_IDS = {"store001", "store002", "store003"};
+
+    private final int users;
+    private final int sessionsPerUser;
+    private final int anonymousSessions;
+    private final int rate;
+    private final int seconds;
+    private final int shards;
+    private final int lanes;
+    private final boolean stream;
+    private final int batchSize;
+    private final int loginPercent;
+    private final int regularPercent;
+    private final int timeScale;
+    private final int reportSeconds;
+
+    private final LongAdder events = new LongAdder();
+    private final LongAdder tags = new LongAdder();
+    private final LatencyHistogram eventLatencies = new LatencyHistogram();
+    private final LatencyHistogram tagLatencies = new LatencyHistogram();
+    private final LatencyHistogram runEventLatencies = new LatencyHistogram();
+    private final LatencyHistogram runTagLatencies = new LatencyHistogram();
+    private final ThreadLocal<TimedTagSink> timedTagSinks = new ThreadLocal<TimedTagSink>() {
+        @Override
+        protected TimedTagSink initialValue() {
+            return new TimedTagSink();
+        }
+    };
+
+    private long originNanos;
+    private long startMillis;
+    private volatile boolean stopping = false;
+
+    private LoadGenerator(Options options) {
+        this.users = options.users;
+        this.sessionsPerUser = options.sessionsPerUser;
+        this.anonymousSessions = options.anonymousSessions;
+        this.rate = options.rate;
+        this.seconds = options.seconds;
+        this.shards = options.shards;
+        this.lanes = options.lanes;
+        this.stream = options.stream;
+        this.batchSize = options.batchSize;
+        this.loginPercent = options.loginPercent;
+        this.regularPercent = options.regularPercent;
+        this.timeScale = options.timeScale;
+        this.reportSeconds = options.reportSeconds;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options = Options.parse(args);
+        if (options == null) {
+            System.err.println("Usage: LoadGenerator [--users <n>] [--sessions-per-user <n>] [--anonymous <n>]"
+                    + " [--rate <events/s>] [--seconds <n>] [--shards <n>] [--lanes <n>] [--stream] [--batch <n>]"
+                    + " [--login-percent <n>] [--regular-percent <n>] [--time-scale <n>] [--report-seconds <n>]");
+            System.exit(1);
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private void run() throws InterruptedException {
+        AgentMetrics metrics = new AgentMetrics();
+        DeadLetterStore deadLetterStore = new DeadLetterStore(new File("load-generator-dead-letters.ndjson"));
+        DetectorTable detectorTable = new DetectorTable(
+                Collections.<Detector>singletonList(new TimedDetector(new FrequentVisitorDetector())));
+        ProcessingLanes processingLanes = (lanes > 0) ? new ProcessingLanes(lanes) : null;
+        DiscardingTagSink tagSink = new DiscardingTagSink();
+
+        List<EMAAgentRecordProcessor> recordProcessors = new ArrayList<EMAAgentRecordProcessor>();
+        for (int shard = 0; shard < shards; shard++) {
+            EMAAgentRecordProcessor recordProcessor = new EMAAgentRecordProcessor(tagSink, processingLanes, metrics,
+                    null, null, deadLetterStore, detectorTable);
+            recordProcessor.initialize(new InitializationInput().withShardId(String.format("shardId-%012d", shard)));
+            recordProcessors.add(recordProcessor);
+        }
+
+        System.out.println(users + " users with " + sessionsPerUser + " sessions each and " + anonymousSessions
+                + " anonymous sessions; " + rate + " events/s for " + seconds + "s over " + shards + " shards"
+                + (stream ? " through local streams" : "") + ((lanes > 0) ? " and " + lanes + " lanes" : "")
+                + "; event time at " + timeScale + "x");
+        System.gc();
+        long baselineHeapBytes = heapAfterGcBytes();
+        originNanos = System.nanoTime();
+        startMillis = System.currentTimeMillis();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int shard = 0; shard < shards; shard++) {
+            threads.addAll(start(shard, recordProcessors.get(shard)));
+        }
+
+        long reportedEvents = 0L;
+        long reportedTags = 0L;
+        long reportedNanos = originNanos;
+        long endNanos = originNanos + TimeUnit.SECONDS.toNanos(seconds);
+        while (reportedNanos < endNanos) {
+            long reportNanos = Math.min(endNanos, reportedNanos + TimeUnit.SECONDS.toNanos(reportSeconds));
+            while (System.nanoTime() < reportNanos) {
+                LockSupport.parkNanos(reportNanos - System.nanoTime());
+            }
+            long processed = events.sum();
+            long tagged = tags.sum();
+            eventLatencies.roll();
+            tagLatencies.roll();
+            System.out.printf("%6ds: %d events/s, %d tags; event latency %s, tag latency %s; heap after GC %dMB;"
+                            + " %d users and %d sessions%n",
+                    TimeUnit.NANOSECONDS.toSeconds(reportNanos - originNanos),
+                    (processed - reportedEvents) * 1000000000L / (reportNanos - reportedNanos),
+                    tagged - reportedTags, percentiles(eventLatencies), percentiles(tagLatencies),
+                    heapAfterGcBytes() >> 20, UserProfiles.getAuthenticatedUserCount(),
+                    UserProfiles.getUnauthenticatedUserCount() + UserProfiles.getCompactSessionCount());
+            reportedEvents = processed;
+            reportedTags = tagged;
+            reportedNanos = reportNanos;
+        }
+
+        stopping = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - originNanos;
+        runEventLatencies.roll();
+        runTagLatencies.roll();
+        System.gc();
+        long endHeapBytes = heapAfterGcBytes();
+
+        long processed = events.sum();
+        System.out.printf("Sustained %d events/s of the %d asked for: %d events and %d tags in %dms%n",
+                processed * 1000000000L / elapsedNanos, rate, processed, tags.sum(),
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        System.out.println("Event latency " + percentiles(runEventLatencies) + "; tag latency "
+                + percentiles(runTagLatencies));
+        System.out.printf("Heap after GC %dMB at the start and %dMB at the end, %+dMB; %d users, %d sessions, %d"
+                        + " evicted%n", baselineHeapBytes >> 20, endHeapBytes >> 20,
+                (endHeapBytes - baselineHeapBytes) >> 20, UserProfiles.getAuthenticatedUserCount(),
+                UserProfiles.getUnauthenticatedUserCount() + UserProfiles.getCompactSessionCount(),
+                UserProfiles.getEvictionCount());
+
+        for (EMAAgentRecordProcessor recordProcessor : recordProcessors) {
+            recordProcessor.shutdown(new ShutdownInput()
+                    .withShutdownReason(ShutdownReason.TERMINATE)
+                    .withCheckpointer(new DiscardingCheckpointer()));
+        }
+        if (processingLanes != null) {
+            processingLanes.shutdown();
+        }
+        deadLetterStore.close();
+    }
+
+    // Start the threads generating and processing one shard's events
+    private List<Thread> start(final int shard, final EMAAgentRecordProcessor recordProcessor) {
+        List<Thread> threads = new ArrayList<Thread>();
+        if (!stream) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    generate(shard, new Consumer() {
+                        private final List<Record> batch = new ArrayList<Record>(batchSize);
+
+                        @Override
+                        public void accept(Record record, boolean more) {
+                            batch.add(record);
+                            if (batch.size() >= batchSize || !more) {
+                                process(recordProcessor, batch);
+                                batch.clear();
+                            }
+                        }
+                    });
+                }
+            }, "LoadGenerator-shard-" + shard));
+        } else {
+            final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(Math.max(batchSize, rate / shards));
+            final Thread generator = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    generate(shard, new Consumer() {
+                        @Override
+                        public void accept(Record record, boolean more) {
+                            try {
+                                queue.put(record);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+                }
+            }, "LoadGenerator-shard-" + shard);
+            threads.add(generator);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    List<Record> batch = new ArrayList<Record>(batchSize);
+                    try {
+                        while (generator.isAlive() || !queue.isEmpty()) {
+                            Record first = queue.poll(10, TimeUnit.MILLISECONDS);
+                            if (first == null) {
+                                continue;
+                            }
+                            batch.add(first);
+                            queue.drainTo(batch, batchSize - 1);
+                            process(recordProcessor, batch);
+                            batch.clear();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "LoadGenerator-stream-" + shard));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        return threads;
+    }
+
+    private void process(EMAAgentRecordProcessor recordProcessor, List<Record> batch) {
+        long behindNanos = System.nanoTime() - originNanos - Long.parseLong(batch.get(0).getSequenceNumber());
+        recordProcessor.processRecords(new ProcessRecordsInput()
+                .withRecords(batch)
+                .withCheckpointer(new DiscardingCheckpointer())
+                .withMillisBehindLatest(Math.max(0L, TimeUnit.NANOSECONDS.toMillis(behindNanos))));
+    }
+
+    /**
+     * Generate a shard's events at its share of the rate, each when it is due, until the run is over.  A record's
+     * sequence number is the nanoseconds from the start of the run at which it was due.
+     */
+    private void generate(int shard, Consumer consumer) {
+        Random random = new Random(shard);
+        long authenticated = (long) users * sessionsPerUser;
+        long sessions = (authenticated + anonymousSessions - shard + shards - 1) / shards;
+        long regulars = Math.max(1L, sessions * regularPercent / 100);
+        double intervalNanos = 1e9 * shards / rate;
+        long lastDueNanos = -1L;
+        for (long event = 0; ; event++) {
+            long dueNanos = Math.max(lastDueNanos + 1, (long) (event * intervalNanos));
+            lastDueNanos = dueNanos;
+            long waitNanos = originNanos + dueNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+            boolean more = !stopping && (long) ((event + 1) * intervalNanos) <= System.nanoTime() - originNanos;
+            long session = (long) ((random.nextInt(3) == 0) ? random.nextDouble() * regulars
+                    : random.nextDouble() * sessions) * shards + shard;
+            String userSessionId = new UUID(SESSION_ID_BITS, session).toString();
+            long eventMillis = startMillis + TimeUnit.NANOSECONDS.toMillis(dueNanos) * timeScale;
+            String data = (session < authenticated && random.nextInt(100) < loginPercent)
+                    ? "{\"eventName\":\"userSessionBecomesActive\",\"eventSource\":\"web\",\"userId\":\"user"
+                            + (session / sessionsPerUser) + "\",\"userSessionId\":\"" + userSessionId
+                            + "\",\"timestamp\":" + eventMillis + "}"
+                    : "{\"eventName\":\"userVisitsStore\",\"eventSource\":\"mobile\",\"storeId\":\""
+                            + STORE_IDS[random.nextInt(STORE_IDS.length)] + "\",\"userSessionId\":\"" + userSessionId
+                            + "\",\"timestamp\":" + eventMillis + "}";
+            // The records arrive on the same scaled clock, so event times are not taken as skewed into the future
+            consumer.accept(new Record()
+                    .withSequenceNumber(Long.toString(dueNanos))
+                    .withApproximateArrivalTimestamp(new Date(eventMillis))
+                    .withPartitionKey(userSessionId)
+                    .withData(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8))), more);
+            if (stopping) {
+                return;
+            }
+        }
+    }
+
+    private static String percentiles(LatencyHistogram histogram) {
+        return String.format("p50 %.3fms p99 %.3fms p999 %.3fms", histogram.getPercentile(50) / 1e6,
+                histogram.getPercentile(99) / 1e6, histogram.getPercentile(99.9) / 1e6);
+    }
+
+    // The heap in use after the latest collection, without forcing one; what the live objects take
+    private static long heapAfterGcBytes() {
+        long bytes = 0L;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null) {
+                bytes += usage.getUsed();
+            }
+        }
+        return bytes;
+    }
+
+    /** Takes each generated record, and whether more are already due. */
+    private interface Consumer {
+        void accept(Record record, boolean more);
+    }
+
+    /** Counts the events a detector is handed and times them, and the tags it emits, from when they were due. */
+    private class TimedDetector implements Detector {
+        private final Detector detector;
+
+        TimedDetector(Detector detector) {
+            this.detector = detector;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String getName() { return detector.getName(); }
+
+        /** {@inheritDoc} */
+        @Override
+        public Collection<String> getEventNames() { return detector.getEventNames(); }
+
+        /** {@inheritDoc} */
+        @Override
+        public void detect(DetectedEvent event, TagSink tagSink) {
+            TimedTagSink timedTagSink = timedTagSinks.get();
+            timedTagSink.tagSink = tagSink;
+            timedTagSink.dueNanos = originNanos + Long.parseLong(event.getRecord().getSequenceNumber());
+            detector.detect(event, timedTagSink);
+
+            long latencyNanos = System.nanoTime() - timedTagSink.dueNanos;
+            eventLatencies.record(latencyNanos);
+            runEventLatencies.record(latencyNanos);
+            events.increment();
+        }
+    }
+
+    // The tag sink of the event being detected on this thread
+    private class TimedTagSink implements TagSink {
+        TagSink tagSink;
+        long dueNanos;
+
+        @Override
+        public void emitTag(String userSessionId, String userId, String tag, long expiresMillis) {
+            tagSink.emitTag(userSessionId, userId, tag, expiresMillis);
+
+            long latencyNanos = System.nanoTime() - dueNanos;
+            tagLatencies.record(latencyNanos);
+            runTagLatencies.record(latencyNanos);
+            tags.increment();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class DiscardingTagSink implements TagSink {
+        @Override
+        public void emitTag(String userSessionId, String userId, String tag, long expiresMillis) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class DiscardingCheckpointer implements IRecordProcessorCheckpointer {
+        @Override
+        public void checkpoint() {
+        }
+
+        @Override
+        public void checkpoint(Record record) {
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber) {
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber, long subSequenceNumber) {
+        }
+    }
+
+    private static class Options {
+        int users = 100000;
+        int sessionsPerUser = 2;
+        int anonymousSessions = 1000000;
+        int rate = 20000;
+        int seconds = 60;
+        int shards = 1;
+        int lanes = 0;
+        boolean stream = false;
+        int batchSize = 500;
+        int loginPercent = 10;
+        int regularPercent = 5;
+        int timeScale = 60;
+        int reportSeconds = 10;
+
+        // @return the options, or null if the arguments are not understood
+        static Options parse(String[] args) {
+            Options options = new Options();
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    String value = (i + 1 < args.length) ? args[i + 1] : null;
+                    if (args[i].equals("--stream")) {
+                        options.stream = true;
+                        continue;
+                    }
+                    if (value == null) {
+                        return null;
+                    }
+                    int number = Integer.parseInt(value);
+                    i++;
+                    if (args[i - 1].equals("--users")) {
+                        options.users = number;
+                    } else if (args[i - 1].equals("--sessions-per-user")) {
+                        options.sessionsPerUser = number;
+                    } else if (args[i - 1].equals("--anonymous")) {
+                        options.anonymousSessions = number;
+                    } else if (args[i - 1].equals("--rate")) {
+                        options.rate = number;
+                    } else if (args[i - 1].equals("--seconds")) {
+                        options.seconds = number;
+                    } else if (args[i - 1].equals("--shards")) {
+                        options.shards = number;
+                    } else if (args[i - 1].equals("--lanes")) {
+                        options.lanes = number;
+                    } else if (args[i - 1].equals("--batch")) {
+                        options.batchSize = number;
+                    } else if (args[i - 1].equals("--login-percent")) {
+                        options.loginPercent = number;
+                    } else if (args[i - 1].equals("--regular-percent")) {
+                        options.regularPercent = number;
+                    } else if (args[i - 1].equals("--time-scale")) {
+                        options.timeScale = number;
+                    } else if (args[i - 1].equals("--report-seconds")) {
+                        options.reportSeconds = number;
+                    } else {
+                        return null;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            boolean valid = options.users >= 0 && options.sessionsPerUser >= 1 && options.anonymousSessions >= 0
+                    && (long) options.users * options.sessionsPerUser + options.anonymousSessions >= options.shards
+                    && options.rate >= options.shards && options.seconds >= 1 && options.shards >= 1
+                    && options.lanes >= 0 && options.batchSize >= 1 && options.reportSeconds >= 1
+                    && options.timeScale >= 1;
+            return valid ? options : null;
+        }
+    }
+}
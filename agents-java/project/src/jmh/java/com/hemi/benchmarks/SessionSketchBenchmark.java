@@ -0,0 +1,159 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hemi.user.SessionSketch;
+import com.hemi.user.UserProfile;
+import com.hemi.user.UserProfiles;
+import com.hemi.user.VisitResult;
+import com.hemi.user.VisitWindows;
+import com.hemi.user.Watermark;
+
+/**
+ * The cost of recording an anonymous visit in a {@link SessionSketch} against an exact {@link UserProfile}.
+ *
+ * Run as a program, it measures accuracy instead: a simulated stream of anonymous visits, in which a few
+ * sessions return often and most visit once, goes both to exact profiles and to the sketch mode of
+ * {@link UserProfiles}, and the frequent visitor status each gives after every visit is compared.
+ *   java -Dema.sketch.epsilon=0.0001 -cp target/agent-benchmarks.jar com.hemi.benchmarks.SessionSketchBenchmark
+ * Arguments, all optional: sessions, minutes, visits per minute, percentage of sessions which return often.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionSketchBenchmark {
+    private static final long START_MILLIS = 1700000000000L;
+
+    @Param({"100000"})
+    public int sessions;
+
+    @Param({"0.0001"})
+    public double epsilon;
+
+    private String[] sessionIds;
+    private SessionSketch sessionSketch;
+    private Map<String, UserProfile> userProfiles;
+
+    @Setup
+    public void setUp() {
+        sessionIds = new String[sessions];
+        userProfiles = new HashMap<String, UserProfile>();
+        for (int i = 0; i < sessions; i++) {
+            sessionIds[i] = UUID.randomUUID().toString();
+            userProfiles.put(sessionIds[i], new UserProfile(sessionIds[i], null, START_MILLIS));
+        }
+        sessionSketch = new SessionSketch(epsilon, 0.01, Long.MAX_VALUE, 60000L);
+    }
+
+    @State(Scope.Thread)
+    public static class Visits {
+        final long[] visits = new long[VisitWindows.Resolution.values().length];
+    }
+
+    @Benchmark
+    public int sketch(Visits state) {
+        String userSessionId = sessionIds[ThreadLocalRandom.current().nextInt(sessions)];
+        return sessionSketch.recordVisit(userSessionId, START_MILLIS, state.visits);
+    }
+
+    @Benchmark
+    public int exact() {
+        String userSessionId = sessionIds[ThreadLocalRandom.current().nextInt(sessions)];
+        return userProfiles.get(userSessionId).recordUserVisit(userSessionId, null, START_MILLIS);
+    }
+
+    public static void main(String[] args) {
+        int sessions = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int minutes = (args.length > 1) ? Integer.parseInt(args[1]) : 30;
+        int visitsPerMinute = (args.length > 2) ? Integer.parseInt(args[2]) : 20000;
+        int regularPercent = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
+
+        // The sketch mode is read when UserProfiles is first used
+        System.setProperty("ema.profiles.sketchSessions", "true");
+        UserProfiles userProfiles = new UserProfiles("sketched");
+        Watermark watermark = new Watermark(0L);
+        userProfiles.addWatermark(watermark);
+
+        String[] sessionIds = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            sessionIds[i] = UUID.randomUUID().toString();
+        }
+        int regulars = Math.max(1, sessions * regularPercent / 100);
+
+        Map<String, UserProfile> exactProfiles = new HashMap<String, UserProfile>();
+        long agree = 0L;
+        long falsePositives = 0L;
+        long falseNegatives = 0L;
+        long exactTags = 0L;     // Visits making a session frequent
+        long sketchTags = 0L;
+        Random random = new Random(42L);
+        long start = System.nanoTime();
+        for (int minute = 0; minute < minutes; minute++) {
+            for (int v = 0; v < visitsPerMinute; v++) {
+                // A third of the visits are by the regulars; the rest are spread over every session
+                String userSessionId =
+                        sessionIds[(random.nextInt(3) == 0) ? random.nextInt(regulars) : random.nextInt(sessions)];
+                long visitMillis = START_MILLIS + minute * 60000L + random.nextInt(60000);
+                watermark.advance(visitMillis);
+
+                UserProfile exactProfile = exactProfiles.get(userSessionId);
+                if (exactProfile == null) {
+                    exactProfile = new UserProfile(userSessionId, null, visitMillis);
+                    exactProfiles.put(userSessionId, exactProfile);
+                }
+                VisitResult exactResult = VisitWindows.resultOf(
+                        exactProfile.recordUserVisit(userSessionId, null, visitMillis), 0);
+                VisitResult sketchResult = VisitWindows.resultOf(
+                        userProfiles.recordUserVisit(userSessionId, null, visitMillis), 0);
+                exactTags += (exactResult == VisitResult.BECAME_FREQUENT) ? 1 : 0;
+                sketchTags += (sketchResult == VisitResult.BECAME_FREQUENT) ? 1 : 0;
+                boolean exact = exactResult.isFrequentVisitor();
+                boolean sketched = sketchResult.isFrequentVisitor();
+                if (exact == sketched) {
+                    agree++;
+                } else if (sketched) {
+                    falsePositives++;
+                } else {
+                    falseNegatives++;
+                }
+            }
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        long visits = (long) minutes * visitsPerMinute;
+        System.out.println("Windows " + VisitWindows.window(0) + "; " + visits + " visits by " + sessions
+                + " sessions, " + regulars + " of them regulars, over " + minutes + " minutes, in " + elapsedMillis
+                + "ms");
+        System.out.println("Exact:  " + exactProfiles.size() + " profiles; " + exactTags + " tags");
+        System.out.println("Sketch: " + UserProfiles.getUnauthenticatedUserCount() + " profiles and "
+                + (UserProfiles.getSessionSketchBytes() >> 10) + "KB of sketches; " + sketchTags + " tags");
+        System.out.printf("Visits after which the status agrees: %.4f%%; falsely frequent %d, falsely infrequent %d%n",
+                100.0 * agree / visits, falsePositives, falseNegatives);
+    }
+}
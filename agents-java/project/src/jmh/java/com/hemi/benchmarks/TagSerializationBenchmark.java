@@ -0,0 +1,53 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hemi.TagEvents;
+
+/**
+ * Serialization of a userTag event into a reused buffer, as the tag sinks do.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TagSerializationBenchmark {
+    private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
+    private final TagEvents tagEvents = new TagEvents(outputStream);
+
+    @Benchmark
+    public int anonymousTag() throws IOException {
+        outputStream.reset();
+        tagEvents.write("47463f02-2ff9-4246-9b71-f9f9fb7d4908", null, "isFrequentVisitor",
+                1508212800000L);
+        return outputStream.size();
+    }
+
+    @Benchmark
+    public int authenticatedTag() throws IOException {
+        outputStream.reset();
+        tagEvents.write("47463f02-2ff9-4246-9b71-f9f9fb7d4908", "Alice", "isFrequentVisitor",
+                1508212800000L);
+        return outputStream.size();
+    }
+}
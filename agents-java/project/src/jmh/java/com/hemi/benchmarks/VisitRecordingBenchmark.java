@@ -0,0 +1,94 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hemi.user.UserProfile;
+import com.hemi.user.UserProfiles;
+
+/**
+ * Visit recording over a population of anonymous and authenticated users, on one thread and on several
+ * threads sharing the profile store as shard processors do.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VisitRecordingBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Population {
+        @Param({"100000"})
+        public int users;
+
+        // Percentage of visits by users who have not logged in
+        @Param({"80"})
+        public int anonymousPercent;
+
+        String[] sessionIds;
+        String[] userIds;
+        UserProfiles userProfiles;
+
+        @Setup
+        public void setUp() {
+            userProfiles = new UserProfiles("benchmark");
+            sessionIds = new String[users];
+            userIds = new String[users];
+            for (int i = 0; i < users; i++) {
+                sessionIds[i] = UUID.randomUUID().toString();
+                userIds[i] = (i * 100 / users >= anonymousPercent) ? "user" + i : null;
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SingleProfile {
+        UserProfile userProfile;
+        String userSessionId;
+
+        @Setup
+        public void setUp() {
+            userSessionId = UUID.randomUUID().toString();
+            userProfile = new UserProfile(userSessionId);
+        }
+    }
+
+    @Benchmark
+    public int userProfile(SingleProfile state) {
+        return state.userProfile.recordUserVisit(state.userSessionId);
+    }
+
+    @Benchmark
+    public int userProfiles(Population population) {
+        int i = ThreadLocalRandom.current().nextInt(population.users);
+        return population.userProfiles.recordUserVisit(population.sessionIds[i], population.userIds[i]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int userProfilesFourThreads(Population population) {
+        int i = ThreadLocalRandom.current().nextInt(population.users);
+        return population.userProfiles.recordUserVisit(population.sessionIds[i], population.userIds[i]);
+    }
+}
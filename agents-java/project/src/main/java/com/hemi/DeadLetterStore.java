@@ -0,0 +1,85 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Keeps the records which could not be processed, as newline-delimited JSON, so they can be inspected and
+ * replayed.  Each line holds the record's shard, sequence number, partition key and data, with the reason it
+ * failed.  Lines are flushed as they are written, since dead letters are rare and should survive a crash.  The
+ * file is appended to, and only created once there is something to write.
+ */
+public class DeadLetterStore {
+    private static final Log LOG = LogFactory.getLog(DeadLetterStore.class);
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final File file;
+    private OutputStream outputStream = null;
+
+    public DeadLetterStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param reason why the record could not be processed
+     */
+    public synchronized void add(String shardId, Record record, String reason) {
+        ByteBuffer data = record.getData().duplicate();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+
+        try {
+            if (outputStream == null) {
+                outputStream = new BufferedOutputStream(new FileOutputStream(file, true), 8 * 1024);
+                LOG.warn("Writing dead letters to " + file);
+            }
+            JsonGenerator jsonGenerator = jsonFactory.createGenerator(outputStream);
+            jsonGenerator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            jsonGenerator.writeStartObject();
+            jsonGenerator.writeStringField("shardId", shardId);
+            jsonGenerator.writeStringField("sequenceNumber", record.getSequenceNumber());
+            jsonGenerator.writeStringField("partitionKey", record.getPartitionKey());
+            jsonGenerator.writeStringField("failed", Instant.now().toString());
+            jsonGenerator.writeStringField("reason", reason);
+            // The data may not be valid JSON, so it is kept as a string
+            jsonGenerator.writeStringField("data", new String(bytes, StandardCharsets.UTF_8));
+            jsonGenerator.writeEndObject();
+            jsonGenerator.close();
+            outputStream.write('\n');
+            outputStream.flush();
+        } catch (IOException e) {
+            LOG.error("Couldn't write dead letter for record " + record.getSequenceNumber() + " of shard " + shardId,
+                    e);
+        }
+    }
+
+    public synchronized void close() {
+        if (outputStream == null) {
+            return;
+        }
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            LOG.error("Couldn't close dead letter output", e);
+        }
+    }
+}
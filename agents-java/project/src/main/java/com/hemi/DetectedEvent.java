@@ -0,0 +1,54 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+import com.hemi.user.UserProfiles;
+
+/**
+ * The fields of an event which has been parsed for the detectors.  Each processing thread reuses one instance
+ * for all its events, so detectors must not keep it.
+ */
+public final class DetectedEvent {
+    private String eventName;
+    private String userSessionId;
+    private String userId;
+    private long eventTimeMillis;
+    private Record record;
+    private UserProfiles userProfiles;
+
+    void set(String eventName, String userSessionId, String userId, long eventTimeMillis, Record record,
+             UserProfiles userProfiles) {
+        this.eventName = eventName;
+        this.userSessionId = userSessionId;
+        this.userId = userId;
+        this.eventTimeMillis = eventTimeMillis;
+        this.record = record;
+        this.userProfiles = userProfiles;
+    }
+
+    public String getEventName() { return this.eventName; }
+
+    /** @return the event's userSessionId, or null if it had none */
+    public String getUserSessionId() { return this.userSessionId; }
+
+    /** @return the event's userId, or null if it had none */
+    public String getUserId() { return this.userId; }
+
+    /**
+     * @return when the event happened, in epoch milliseconds: its timestamp if it had one, or else when its
+     * record reached the stream.  A timestamp too far ahead of the record's arrival is replaced by the arrival.
+     */
+    public long getEventTimeMillis() { return this.eventTimeMillis; }
+
+    /** @return the record the event came from, for detectors which need more of it than these fields */
+    public Record getRecord() { return this.record; }
+
+    /** @return the profiles of the users of the shard the event came from */
+    public UserProfiles getUserProfiles() { return this.userProfiles; }
+}
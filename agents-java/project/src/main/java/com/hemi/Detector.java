@@ -0,0 +1,49 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.util.Collection;
+
+import com.hemi.user.UserProfiles;
+
+/**
+ * A behavior the agent looks for in the event stream, which tags users when it sees it.  Each event is parsed
+ * once and handed to the detectors which named its eventName, so one agent can host many detectors for the cost
+ * of a single read of the stream.
+ *
+ * Detectors are found with {@link java.util.ServiceLoader}, so a detector is added by putting its class on the
+ * classpath and its name in META-INF/services/com.hemi.Detector.  They need a public no-argument constructor.
+ * One instance serves every shard, and is called from several threads at once for events with different
+ * partition keys.  What a detector learns about users belongs in the profiles of the event's shard, which move
+ * with the shard from worker to worker.
+ */
+public interface Detector {
+    /** @return the name by which the detector is enabled in ema.detectors */
+    String getName();
+
+    /** @return the eventNames of the events to hand to this detector */
+    Collection<String> getEventNames();
+
+    /**
+     * Look at an event, emitting any tags it calls for.  The event is only valid until this returns.
+     *
+     * @throws InvalidEventException if the event lacks a field the detector needs, or has one it cannot use; the
+     *                               record goes to the dead letter store.  Detectors check the fields they need
+     *                               rather than letting a NullPointerException stand in for the check.
+     * @throws RuntimeException if handling the event failed otherwise; the record is retried, starting with this
+     *                          detector, as those before it in the dispatch order have already handled it
+     */
+    void detect(DetectedEvent event, TagSink tagSink);
+
+    /**
+     * Called once a shard's profiles have been restored from a snapshot or inherited from its parents, before
+     * any of the shard's events are detected, so a detector can rebuild whatever it keeps outside the profiles.
+     * Does nothing by default.
+     */
+    default void profilesRestored(UserProfiles userProfiles) {
+    }
+}
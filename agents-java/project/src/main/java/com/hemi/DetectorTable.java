@@ -0,0 +1,88 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Which detectors handle each eventName.  The table is built once, with an index for each eventName any
+ * detector is interested in; the event parser reports that index, so dispatching an event is an array lookup.
+ */
+public class DetectorTable {
+    private static final Log LOG = LogFactory.getLog(DetectorTable.class);
+
+    private final Detector[] detectors;
+    private final String[] eventNames;
+    private final Detector[][] detectorsByEvent;
+
+    public DetectorTable(List<Detector> detectors) {
+        this.detectors = detectors.toArray(new Detector[detectors.size()]);
+        Map<String, List<Detector>> byName = new LinkedHashMap<String, List<Detector>>();
+        for (Detector detector : detectors) {
+            for (String eventName : detector.getEventNames()) {
+                List<Detector> forName = byName.get(eventName);
+                if (forName == null) {
+                    forName = new ArrayList<Detector>();
+                    byName.put(eventName, forName);
+                }
+                forName.add(detector);
+            }
+        }
+
+        eventNames = byName.keySet().toArray(new String[byName.size()]);
+        detectorsByEvent = new Detector[eventNames.length][];
+        for (int i = 0; i < eventNames.length; i++) {
+            List<Detector> forName = byName.get(eventNames[i]);
+            detectorsByEvent[i] = forName.toArray(new Detector[forName.size()]);
+        }
+    }
+
+    /**
+     * Load the detectors on the classpath.  The ema.detectors property, a comma-separated list of detector
+     * names, picks which of them to use; without it, all are used.
+     *
+     * @throws IllegalArgumentException if a detector named in ema.detectors is not on the classpath
+     */
+    public static DetectorTable load() {
+        String enabled = System.getProperty("ema.detectors");
+        Set<String> names = (enabled == null) ? null
+                : new HashSet<String>(Arrays.asList(enabled.trim().split("\\s*,\\s*")));
+
+        List<Detector> detectors = new ArrayList<Detector>();
+        for (Detector detector : ServiceLoader.load(Detector.class)) {
+            if (names == null || names.remove(detector.getName())) {
+                LOG.info("Using detector " + detector.getName() + " for events " + detector.getEventNames());
+                detectors.add(detector);
+            }
+        }
+        if (names != null && !names.isEmpty()) {
+            throw new IllegalArgumentException("No such detectors: " + names);
+        }
+        return new DetectorTable(detectors);
+    }
+
+    /** @return the eventNames of interest, in index order; for the event parser */
+    public String[] getEventNames() { return this.eventNames.clone(); }
+
+    public String getEventName(int eventIndex) { return this.eventNames[eventIndex]; }
+
+    /** @return every detector in the table */
+    public Detector[] getDetectors() { return this.detectors.clone(); }
+
+    /** @return the detectors to hand events with the given eventName index to, always in the same order */
+    public Detector[] getDetectors(int eventIndex) { return this.detectorsByEvent[eventIndex]; }
+}
@@ -6,16 +6,23 @@
 
 package com.hemi;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
-import com.amazonaws.services.kinesis.clientlibrary.lib.worker.InitialPositionInStream;
-import com.amazonaws.services.kinesis.clientlibrary.lib.worker.KinesisClientLibConfiguration;
-import com.amazonaws.services.kinesis.clientlibrary.lib.worker.Worker;
+import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessorFactory;
+
+import com.hemi.metrics.AgentMetrics;
 
 public class EMAAgent {
     private static final Log LOG = LogFactory.getLog(EMAAgent.class);
@@ -24,10 +31,25 @@ public class EMAAgent {
 
     public static final String AGENT_NAME = "FrequentVisitorIdentificationAgent";
 
-    // Initial position in the stream when the application starts up for the first time.
-    // Position can be one of LATEST (most recent data) or TRIM_HORIZON (oldest available data)
-    private static final InitialPositionInStream INITIAL_POSITION_IN_STREAM =
-            InitialPositionInStream.LATEST;
+    public static final String KINESIS_ENDPOINT = "https://kinesis.us-east-2.amazonaws.com";
+
+    // Number of lanes to process each batch of records on in parallel, by partition key; 0 processes each batch
+    // in order on its shard's thread
+    private static final int PROCESSING_LANES = Integer.getInteger("ema.processing.lanes", 0);
+
+    // Port to serve metrics as text on, at /metrics; 0 exposes them over JMX only
+    private static final int METRICS_HTTP_PORT = Integer.getInteger("ema.metrics.httpPort", 0);
+
+    // Interface to serve metrics on, such as 0.0.0.0 for all of them; unset for the loopback interface only
+    private static final String METRICS_HTTP_ADDRESS = System.getProperty("ema.metrics.httpAddress");
+
+    // Directory to snapshot each shard's profiles to at each checkpoint and when giving the shard up, and to restore
+    // them from when taking it on; unset to keep them in memory only.  Shards move between workers with their
+    // profiles only if the directory is shared between them.
+    private static final String SNAPSHOT_DIRECTORY = System.getProperty("ema.snapshots.dir");
+
+    // File to append records which cannot be processed to
+    private static final String DEAD_LETTER_FILE = System.getProperty("ema.deadLetters.file", "dead-letters.ndjson");
 
     private static AWSCredentialsProvider credentialsProvider;
 
@@ -50,34 +72,80 @@ public class EMAAgent {
     public static void main(String[] args) {
         LOG.info("EMA Agent is starting up...");
 
-        if (args.length > 0) {
-            if (args[0].equals("--name")) {
+        // With --replay, events are read from archived newline-delimited JSON files instead of Kinesis, and tags
+        // are written to the --tags-out file, or standard output
+        List<File> replayFiles = new ArrayList<File>();
+        String tagsOut = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--name")) {
                 System.out.println(AGENT_NAME);
                 System.exit(0);
+            } else if (args[i].equals("--replay") && i + 1 < args.length) {
+                replayFiles.add(new File(args[++i]));
+            } else if (args[i].equals("--tags-out") && i + 1 < args.length) {
+                tagsOut = args[++i];
+            } else {
+                System.err.println("Usage: EMAAgent [--name] [--replay <events.ndjson>]... [--tags-out <tags.ndjson>]");
+                System.exit(2);
             }
         }
 
-        init();
+        AgentMetrics metrics = new AgentMetrics();
+        if (METRICS_HTTP_PORT > 0) {
+            try {
+                metrics.startHttpServer(METRICS_HTTP_ADDRESS, METRICS_HTTP_PORT);
+            } catch (IOException e) {
+                LOG.warn("Cannot serve metrics on port " + METRICS_HTTP_PORT, e);
+            }
+        }
+
+        EventSource eventSource;
+        TagSink tagSink;
+        ShardLineage shardLineage = null;   // Replayed files have no parents
+        if (replayFiles.isEmpty()) {
+            init();
+            eventSource = new KinesisEventSource(credentialsProvider);
+
+            // One producer puts the tag events of every shard's record processor
+            AmazonKinesisClient tagEventKinesisClient = new AmazonKinesisClient(credentialsProvider);
+            tagEventKinesisClient.withEndpoint(KINESIS_ENDPOINT);
+            tagSink = new TagEventProducer(tagEventKinesisClient, STREAM_NAME, metrics);
+            shardLineage = new ShardLineage(tagEventKinesisClient, STREAM_NAME);
+        } else {
+            eventSource = new MappedFileEventSource(replayFiles);
+            try {
+                tagSink = new LocalTagSink((tagsOut != null) ? new FileOutputStream(tagsOut) : System.out);
+            } catch (FileNotFoundException e) {
+                System.err.println("Cannot write tags to " + tagsOut + ": " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+        }
 
-        KinesisClientLibConfiguration kinesisClientLibConfiguratcion =
-                new KinesisClientLibConfiguration(AGENT_NAME, STREAM_NAME, credentialsProvider,"1");
+        ProcessingLanes processingLanes = (PROCESSING_LANES > 0) ? new ProcessingLanes(PROCESSING_LANES) : null;
 
-        kinesisClientLibConfiguratcion.withKinesisEndpoint("https://kinesis.us-east-2.amazonaws.com");
-        kinesisClientLibConfiguratcion.withInitialPositionInStream(INITIAL_POSITION_IN_STREAM);
+        DeadLetterStore deadLetters = new DeadLetterStore(new File(DEAD_LETTER_FILE));
 
-        IRecordProcessorFactory recordProcessorFactory = new EMAAgentRecordProcessorFactory();
-        Worker worker = new Worker(recordProcessorFactory, kinesisClientLibConfiguratcion);
+        DetectorTable detectors = DetectorTable.load();
 
-        LOG.info("Running " + AGENT_NAME + " to process stream " + STREAM_NAME + " as worker 1...\n");
+        IRecordProcessorFactory recordProcessorFactory = new EMAAgentRecordProcessorFactory(tagSink, processingLanes,
+                metrics, (SNAPSHOT_DIRECTORY != null) ? new File(SNAPSHOT_DIRECTORY) : null, shardLineage, deadLetters,
+                detectors);
 
         int exitCode = 0;
         try {
-            worker.run();
+            eventSource.run(recordProcessorFactory);
         } catch (Throwable t) {
             System.err.println("Caught throwable while processing data.");
             t.printStackTrace();
             exitCode = 1;
         }
+        if (processingLanes != null) {
+            processingLanes.shutdown();
+        }
+        tagSink.close();
+        deadLetters.close();
+        metrics.close();
         System.exit(exitCode);
 
     }
@@ -6,271 +6,457 @@
 
 package com.hemi;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.CharacterCodingException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-
-import com.amazonaws.AmazonClientException;
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.services.kinesis.AmazonKinesisClient;
-import com.amazonaws.services.kinesis.model.PutRecordRequest;
-import com.amazonaws.services.kinesis.model.PutRecordResult;
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.hemi.user.UserProfile;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.hemi.metrics.AgentMetrics;
+import com.hemi.metrics.ShardMetrics;
+import com.hemi.user.ProfileSnapshots;
 import com.hemi.user.UserProfiles;
+import com.hemi.user.Watermark;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
-
-import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
-import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.ShutdownReason;
+import com.amazonaws.services.kinesis.clientlibrary.types.ExtendedSequenceNumber;
+import com.amazonaws.services.kinesis.clientlibrary.types.InitializationInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ProcessRecordsInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownInput;
 import com.amazonaws.services.kinesis.model.Record;
 
-import static com.hemi.EMAAgent.AGENT_NAME;
-import static com.hemi.EMAAgent.STREAM_NAME;
-
 public class EMAAgentRecordProcessor implements IRecordProcessor {
     private static final Log LOG = LogFactory.getLog(EMAAgentRecordProcessor.class);
-    private static final String IS_FREQUENT_VISITOR_TAG = "isFrequentVisitor";
 
     private String kinesisShardId;
+    private ShardMetrics shardMetrics;
+
+    // Visits are scored by when they happened: the event's timestamp if it has one, or else when its record
+    // reached the stream.  Visits older than the allowed lateness behind the latest seen on the shard are dropped.
+    // Timestamps come from clients, so one further ahead of its record's arrival than the allowed skew is taken as
+    // the arrival time instead, lest it move the watermark on and have every visit after it dropped as late.
+    private static final long ALLOWED_LATENESS_MILLIS = Long.getLong("ema.events.allowedLatenessMillis", 60000L);
+    private static final long MAX_FUTURE_SKEW_MILLIS = Long.getLong("ema.events.maxFutureSkewMillis", 300000L);
+    private final Watermark watermark = new Watermark(ALLOWED_LATENESS_MILLIS);
+
+    private final DetectorTable detectors;
+    private final TagSink tagSink;
+    private final ProcessingLanes processingLanes;
+    private final AgentMetrics metrics;
+    private final File snapshotDirectory;
+    private final ShardLineage shardLineage;
+    private final DeadLetterStore deadLetters;
+
+    // The profiles of the shard's users, which this processor owns from initialize to shutdown
+    private UserProfiles userProfiles;
+    private ProfileSnapshots profileSnapshots;
+
+    // Records which fail transiently are retried in the background.  Past this many pending retries, the shard
+    // stops taking new records until they catch up.
+    private static final int MAX_PENDING_RETRIES = Integer.getInteger("ema.retry.maxPendingRecords", 10000);
+    private static final long RETRY_DRAIN_MILLIS = Long.getLong("ema.retry.drainMillis", 60000L);
+    private final RecordRetryQueue retries;
+
+    // Records held back by a failed attempt, or parked behind one, with the latest event time seen when they were.
+    // A retry judges lateness by the watermark as it stood then, as the shard's other records move it on meanwhile,
+    // and a record found on time once is not judged again.
+    private final Map<Record, HeldRecord> heldRecords =
+            Collections.synchronizedMap(new IdentityHashMap<Record, HeldRecord>());
+
+    // Last record before which every record has been processed or dead-lettered
+    private String checkpointableSequenceNumber = null;
+    private ShardCheckpointer checkpointer;
+
+    // How long the end of a shard waits for a checkpoint in flight before making its own
+    private static final long CHECKPOINT_DRAIN_MILLIS = Long.getLong("ema.checkpoint.drainMillis", 60000L);
+
+    // Only the events some detector is interested in are parsed fully; others are skipped as soon as their name
+    // is read.  Records may be processed on the KCL thread or on processing lanes, so each thread gets its own
+    // parser, and its own event to hand the detectors.
+    private final ThreadLocal<EventParser> eventParsers;
+    private static final ThreadLocal<DetectedEvent> detectedEvents = new ThreadLocal<DetectedEvent>() {
+        @Override
+        protected DetectedEvent initialValue() {
+            return new DetectedEvent();
+        }
+    };
 
-    private static AmazonKinesisClient addEventKinesisClient;
-
-    // Backoff and retry settings
-    private static final long BACKOFF_TIME_IN_MILLIS = 3000L;
-    private static final int NUM_RETRIES = 10;
-
-    // Checkpoint about once a minute
-    private static final long CHECKPOINT_INTERVAL_MILLIS = 60000L;
-    private long nextCheckpointTimeInMillis;
-
-    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder();
-    private final ObjectMapper mapper = new ObjectMapper();
+    /**
+     * @param processingLanes lanes to spread each batch of records over, or null to process them in order on
+     *                        the calling thread
+     * @param snapshotDirectory where to snapshot each shard's profiles, in a directory of its own, before each
+     *                          checkpoint and when giving the shard up; or null to checkpoint without them
+     * @param shardLineage the parents of each shard, whose profiles it takes over if they ended on this worker;
+     *                     or null for shards without parents
+     * @param deadLetters where to keep records which cannot be processed
+     * @param detectors the detectors to hand each event to
+     */
+    public EMAAgentRecordProcessor(TagSink tagSink, ProcessingLanes processingLanes, AgentMetrics metrics,
+                                   File snapshotDirectory, ShardLineage shardLineage, DeadLetterStore deadLetters,
+                                   final DetectorTable detectors) {
+        this.detectors = detectors;
+        this.eventParsers = new ThreadLocal<EventParser>() {
+            @Override
+            protected EventParser initialValue() {
+                return new EventParser(detectors.getEventNames());
+            }
+        };
+        this.tagSink = new MeteredTagSink(tagSink);
+        this.processingLanes = processingLanes;
+        this.metrics = metrics;
+        this.snapshotDirectory = snapshotDirectory;
+        this.shardLineage = shardLineage;
+        this.deadLetters = deadLetters;
+        this.retries = new RecordRetryQueue(new Predicate<Record>() {
+            @Override
+            public boolean test(Record record) {
+                return tryProcessRecord(record, heldRecords.get(record));
+            }
+        }, new Consumer<Record>() {
+            @Override
+            public void accept(Record record) {
+                hold(record);
+            }
+        }, new Consumer<Record>() {
+            @Override
+            public void accept(Record record) {
+                heldRecords.remove(record);
+                deadLetter(record, "Failed every retry");
+            }
+        });
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void initialize(String s) {
-        LOG.info("Initializing record processor for shard: " + s);
-        this.kinesisShardId = s;
-
-        AWSCredentials credentials = null;
-        try {
-            credentials = new ProfileCredentialsProvider().getCredentials();
-        } catch (Exception e) {
-            throw new AmazonClientException(
-                    "Cannot load the credentials from the credential profiles file. " +
-                            "Please make sure that your credentials file is at the correct " +
-                            "location (~/.aws/credentials), and is in valid format.",
-                    e);
+    public void initialize(InitializationInput initializationInput) {
+        String shardId = initializationInput.getShardId();
+        LOG.info("Initializing record processor for shard: " + shardId);
+        this.kinesisShardId = shardId;
+        this.shardMetrics = metrics.forShard(shardId);
+
+        // Take the shard's profiles over from its last owner's snapshot, or else from its parents if they ended on
+        // this worker
+        this.userProfiles = new UserProfiles(shardId);
+        boolean restored = false;
+        if (snapshotDirectory != null) {
+            this.profileSnapshots = new ProfileSnapshots(new File(snapshotDirectory, directoryNameOf(shardId)),
+                    userProfiles);
+            try {
+                ExtendedSequenceNumber checkpoint = initializationInput.getExtendedSequenceNumber();
+                restored = profileSnapshots.restore((checkpoint != null) ? checkpoint.getSequenceNumber() : null) > 0L;
+            } catch (IOException e) {
+                LOG.error("Cannot restore profiles of shard " + shardId + "; continuing with those restored so far", e);
+                restored = true;
+            }
+        }
+        if (!restored && shardLineage != null) {
+            List<String> parents = shardLineage.parentsOf(shardId);
+            Predicate<String> ownsPartitionKey = parents.isEmpty() ? null : shardLineage.partitionKeysOf(shardId);
+            if (ownsPartitionKey != null) {
+                restored = userProfiles.inherit(parents, ownsPartitionKey) > 0;
+            }
         }
+        if (restored) {
+            for (Detector detector : detectors.getDetectors()) {
+                detector.profilesRestored(userProfiles);
+            }
+        }
+        userProfiles.addWatermark(watermark);
+
+        this.checkpointer = new ShardCheckpointer(shardId, shardMetrics, profileSnapshots);
+    }
 
-        addEventKinesisClient = new AmazonKinesisClient(credentials);
-        addEventKinesisClient.withEndpoint("https://kinesis.us-east-2.amazonaws.com");
+    // Shard ids are safe file names on Kinesis, but replayed files' are their paths
+    private static String directoryNameOf(String shardId) {
+        return shardId.replaceAll("[^A-Za-z0-9._-]", "_");
     }
 
-    public void processRecords(List<Record> list, IRecordProcessorCheckpointer iRecordProcessorCheckpointer) {
-//        LOG.info("Processing " + list.size() + " records from " + kinesisShardId);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void processRecords(ProcessRecordsInput processRecordsInput) {
+        List<Record> records = processRecordsInput.getRecords();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Processing " + records.size() + " records from " + kinesisShardId);
+        }
+        if (processRecordsInput.getMillisBehindLatest() != null) {
+            shardMetrics.setMillisBehindLatest(processRecordsInput.getMillisBehindLatest());
+        }
 
         // Process records and perform all exception handling.
-        processRecordsWithRetries(list);
+        processRecordsWithRetries(records);
+
+        // The stream position may only move past records still awaiting a retry once they are done
+        if (!records.isEmpty() && retries.size() == 0) {
+            checkpointableSequenceNumber = records.get(records.size() - 1).getSequenceNumber();
+        }
+        try {
+            retries.awaitBelow(MAX_PENDING_RETRIES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-        // Checkpoint once every checkpoint interval.
-        if (System.currentTimeMillis() > nextCheckpointTimeInMillis) {
-            checkpoint(iRecordProcessorCheckpointer);
-            nextCheckpointTimeInMillis = System.currentTimeMillis() + CHECKPOINT_INTERVAL_MILLIS;
+        // Checkpointing happens in the background, once enough records, bytes or time have gone by
+        long bytes = 0L;
+        for (Record record : records) {
+            bytes += record.getData().remaining();
         }
+        checkpointer.processed(processRecordsInput.getCheckpointer(), checkpointableSequenceNumber, records.size(),
+                bytes);
     }
 
     /**
-     * Process records performing retries as needed. Skip "poison pill" records.
+     * Process records, leaving those which fail transiently to be retried in the background.  "Poison pill"
+     * records go to the dead letter store.  When processing lanes are in use, records with different partition
+     * keys are processed in parallel; either way, this returns once every record of the batch has been processed,
+     * dead-lettered or queued for a retry.
      *
      * @param records Data records to be processed.
      */
     private void processRecordsWithRetries(List<Record> records) {
-        for (Record record : records) {
-            boolean processedSuccessfully = false;
-            for (int i = 0; i < NUM_RETRIES; i++) {
-                try {
-                    //
-                    // Logic to process record goes here.
-                    //
-                    processSingleRecord(record);
-
-                    processedSuccessfully = true;
-                    break;
-                } catch (Throwable t) {
-                    LOG.warn("Caught throwable while processing record " + record, t);
+        if (processingLanes != null) {
+            processingLanes.processAll(records, new Function<Record, String>() {
+                @Override
+                public String apply(Record record) {
+                    return record.getPartitionKey();
                 }
-
-                // backoff if we encounter an exception.
-                try {
-                    Thread.sleep(BACKOFF_TIME_IN_MILLIS);
-                } catch (InterruptedException e) {
-                    LOG.debug("Interrupted sleep", e);
+            }, new Consumer<Record>() {
+                @Override
+                public void accept(Record record) {
+                    processRecordWithRetries(record);
                 }
+            });
+        } else {
+            for (Record record : records) {
+                processRecordWithRetries(record);
             }
+        }
+    }
 
-            if (!processedSuccessfully) {
-                LOG.error("Couldn't process record " + record + ". Skipping the record.");
-            }
+    private void processRecordWithRetries(Record record) {
+        if (!retries.park(record) && !tryProcessRecord(record, null)) {
+            retries.retry(record);
         }
     }
 
     /**
-     * Process a single record.
-     *
-     * @param record The record to be processed.
+     * @param held how far the record got before it was held back, or null on its first attempt
+     * @return false if processing the record failed in a way which may not recur, so it should be tried again
      */
-    private void processSingleRecord(Record record) {
-        String data = null;
-
-        ObjectNode root = null;
-        JsonNode eventNameNode = null;
-        JsonNode userSessionIdNode = null;
-        JsonNode userIdNode = null;
-
-        String userSessionId = null;
-        String userId = null;
-        UserProfile userProfile = null;
+    private boolean tryProcessRecord(Record record, HeldRecord held) {
         try {
-            // For this app, we interpret the payload as UTF-8 chars.
-            data = decoder.decode(record.getData()).toString();
-            LOG.info(record.getSequenceNumber() + ", " + record.getPartitionKey() + ", " + data);
-
-            root = (ObjectNode) mapper.readTree(data);
-            eventNameNode = root.get("eventName");
-
-            if (eventNameNode != null) {
-                String eventName = eventNameNode.asText();
-                if (eventName.equals("userSessionBecomesActive") || eventName.equals("userVisitsStore")) {
-                    LOG.info("Processing eventName " + eventName);
-
-                    // Put processing logic here:
-                    userSessionIdNode = root.get("userSessionId");
-                    userIdNode = root.get("userId");
-
-                    if (userSessionIdNode != null) {
-                        userSessionId = userSessionIdNode.asText();
-                        if (userSessionId.equals("")) {
-                            userSessionId = null;
-                        }
-                    }
-
-                    if (userIdNode != null) {
-                        userId = userIdNode.asText();
-                        if (userId.equals("")) {
-                            userId = null;
-                        }
-                    }
-
-                    userProfile = UserProfiles.recordUserVisit(userSessionId, userId);
-                    if (userProfile.isFrequentVisitor()) {
-                        // put user tagging event into the stream
-                        LOG.info("Spotted frequent visitor: " + userId + ", " + userSessionId);
-                        addFrequentVisitorTagEvent(userSessionId, userId);
-                    }
-                } else {
-                    LOG.info("Ignoring eventName " + eventName);
-                }
+            processSingleRecord(record, held);
+            if (held != null) {
+                heldRecords.remove(record);
             }
-        } catch (CharacterCodingException e) {
-            LOG.error("Malformed data: " + data, e);
+            return true;
+        } catch (InvalidEventException e) {
+            // Failures caused by the record's content would fail again on every retry: events a detector rejects,
+            // and data which is not a JSON object.  Anything else, a bug included, is retried.
+            heldRecords.remove(record);
+            deadLetter(record, e.getMessage());
+            return true;
         } catch (IOException e) {
-            LOG.error("Invalid JSON: " + data, e);
+            heldRecords.remove(record);
+            deadLetter(record, String.valueOf(e));
+            return true;
+        } catch (Throwable t) {
+            LOG.warn("Caught throwable while processing record " + record.getSequenceNumber() + " of shard "
+                    + kinesisShardId + ". Retrying it.", t);
+            shardMetrics.recordRetry();
+            hold(record);
+            return false;
         }
     }
 
-    public void shutdown(IRecordProcessorCheckpointer iRecordProcessorCheckpointer, ShutdownReason shutdownReason) {
-        LOG.info("Shutting down record processor for shard: " + kinesisShardId);
-        // Important to checkpoint after reaching end of shard, so we can start processing data from child shards.
-        if (shutdownReason == ShutdownReason.TERMINATE) {
-            checkpoint(iRecordProcessorCheckpointer);
+    private HeldRecord hold(Record record) {
+        HeldRecord held = new HeldRecord(watermark.getLatestEventMillis());
+        HeldRecord existing = heldRecords.putIfAbsent(record, held);
+        return (existing != null) ? existing : held;
+    }
+
+    // A record held back to be retried, and how far it got: whether it was on time, and how many of its event's
+    // detectors handled it before one failed, so a retry does not hand it again to those
+    private static final class HeldRecord {
+        final long latestEventMillis;
+        boolean onTime = false;
+        int detectorsDone = 0;
+
+        HeldRecord(long latestEventMillis) {
+            this.latestEventMillis = latestEventMillis;
         }
     }
 
-    /** Checkpoint with retries.
-     * @param checkpointer
+    private void deadLetter(Record record, String reason) {
+        LOG.error("Couldn't process record " + record.getSequenceNumber() + " of shard " + kinesisShardId + ": "
+                + reason + ". Skipping the record.");
+        shardMetrics.recordSkipped();
+        deadLetters.add(kinesisShardId, record, reason);
+    }
+
+    /**
+     * Process a single record.
+     *
+     * @param record The record to be processed.
+     * @param held how far the record got before it was held back, or null on its first attempt
+     * @throws IOException if the record is not a JSON object
      */
-    private void checkpoint(IRecordProcessorCheckpointer checkpointer) {
-        LOG.info("Checkpointing shard " + kinesisShardId);
-        for (int i = 0; i < NUM_RETRIES; i++) {
-            try {
-                checkpointer.checkpoint();
-                break;
-            } catch (ShutdownException se) {
-                // Ignore checkpoint if the processor instance has been shutdown (fail over).
-                LOG.info("Caught shutdown exception, skipping checkpoint.", se);
-                break;
-            } catch (ThrottlingException e) {
-                // Backoff and re-attempt checkpoint upon transient failures
-                if (i >= (NUM_RETRIES - 1)) {
-                    LOG.error("Checkpoint failed after " + (i + 1) + "attempts.", e);
-                    break;
-                } else {
-                    LOG.info("Transient issue when checkpointing - attempt " + (i + 1) + " of "
-                            + NUM_RETRIES, e);
+    private void processSingleRecord(Record record, HeldRecord held) throws IOException {
+        long start = System.nanoTime();
+        // For this app, we interpret the payload as UTF-8 chars.
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(record.getSequenceNumber() + ", " + record.getPartitionKey() + ", " + dataOf(record));
+        }
+
+        EventParser eventParser = eventParsers.get();
+        int event = eventParser.parse(record.getData());
+        if (event < 0) {
+            shardMetrics.recordIgnored(System.nanoTime() - start);
+        } else {
+            String userSessionId = eventParser.getUserSessionId();
+            String userId = eventParser.getUserId();
+
+            long now = eventTimeOf(record, eventParser);
+            boolean onTime = (held == null) ? watermark.advance(now)
+                    : held.onTime || watermark.advance(now, held.latestEventMillis);
+            if (!onTime) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Dropping late event: " + userId + ", " + userSessionId + " at " + now);
                 }
-            } catch (InvalidStateException e) {
-                // This indicates an issue with the DynamoDB table (check for table, provisioned IOPS).
-                LOG.error("Cannot save checkpoint to the DynamoDB table used by the Amazon Kinesis Client Library.", e);
-                break;
+                shardMetrics.recordLate(System.nanoTime() - start);
+                return;
             }
+
+            DetectedEvent detectedEvent = detectedEvents.get();
+            detectedEvent.set(detectors.getEventName(event), userSessionId, userId, now, record, userProfiles);
+            Detector[] eventDetectors = detectors.getDetectors(event);
+            int next = (held != null) ? held.detectorsDone : 0;
             try {
-                Thread.sleep(BACKOFF_TIME_IN_MILLIS);
-            } catch (InterruptedException e) {
-                LOG.debug("Interrupted sleep", e);
+                for (; next < eventDetectors.length; next++) {
+                    eventDetectors[next].detect(detectedEvent, tagSink);
+                }
+            } catch (InvalidEventException e) {
+                throw e;
+            } catch (RuntimeException | Error e) {
+                // On time by this attempt's watermark, whatever it is by the retry's, and to be retried from the
+                // detector which failed
+                HeldRecord failed = hold(record);
+                failed.onTime = true;
+                failed.detectorsDone = next;
+                throw e;
             }
+            shardMetrics.recordProcessed(System.nanoTime() - start);
         }
     }
 
-    private void addFrequentVisitorTagEvent (String userSessionId, String userId) {
-        PutRecordRequest putRecordRequest = new PutRecordRequest();
-        putRecordRequest.setStreamName(STREAM_NAME);
-        putRecordRequest.setPartitionKey(userSessionId);
+    // Times how long detectors take to emit their tags
+    private class MeteredTagSink implements TagSink {
+        private final TagSink tagSink;
 
-        JsonFactory jsonFactory = new JsonFactory();
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        byte[] data = null;
-        try {
-            JsonGenerator jsonGenerator = jsonFactory.createGenerator(outputStream);
-            jsonGenerator.writeStartObject();
-            jsonGenerator.writeStringField("eventName", "userTag");
-            jsonGenerator.writeStringField("eventSource", AGENT_NAME);
-            if (userId != null) {
-                jsonGenerator.writeStringField("userId", userId);
-            }
-            jsonGenerator.writeStringField("userSessionId", userSessionId);
-            jsonGenerator.writeStringField("tag", IS_FREQUENT_VISITOR_TAG);
-            jsonGenerator.writeEndObject();
-            jsonGenerator.close();
+        MeteredTagSink(TagSink tagSink) {
+            this.tagSink = tagSink;
+        }
 
-            data = outputStream.toByteArray();
-            outputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        @Override
+        public void emitTag(String userSessionId, String userId, String tag, long expiresMillis) {
+            long start = System.nanoTime();
+            tagSink.emitTag(userSessionId, userId, tag, expiresMillis);
+            metrics.recordTagEmitted(System.nanoTime() - start);
+        }
+
+        @Override
+        public void close() {
+            tagSink.close();
         }
+    }
+
+    // Records from sources which keep no arrival time are taken to arrive as they are processed
+    private long eventTimeOf(Record record, EventParser eventParser) {
+        long timestampMillis = eventParser.getTimestampMillis();
+        long arrivalMillis = (record.getApproximateArrivalTimestamp() != null)
+                ? record.getApproximateArrivalTimestamp().getTime() : System.currentTimeMillis();
+        return (timestampMillis < 0) ? arrivalMillis : clampFutureSkew(timestampMillis, arrivalMillis);
+    }
+
+    private long clampFutureSkew(long timestampMillis, long referenceMillis) {
+        if (timestampMillis - referenceMillis <= MAX_FUTURE_SKEW_MILLIS) {
+            return timestampMillis;
+        }
+        shardMetrics.recordFuture();
+        return referenceMillis;
+    }
 
-        putRecordRequest.setData(ByteBuffer.wrap(data));
+    private static String dataOf(Record record) {
+        ByteBuffer data = record.getData().duplicate();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 
-        PutRecordResult putRecordResult = addEventKinesisClient.putRecord(putRecordRequest);
-        LOG.info("Successfully put event: " + new String(data, Charset.forName("UTF-8")));
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void shutdown(ShutdownInput shutdownInput) {
+        LOG.info("Shutting down record processor for shard: " + kinesisShardId);
+        // Important to checkpoint after reaching end of shard, so we can start processing data from child shards.
+        if (shutdownInput.getShutdownReason() == ShutdownReason.TERMINATE) {
+            try {
+                retries.drain(RETRY_DRAIN_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Interrupted while finishing retries for shard " + kinesisShardId, e);
+            }
+            if (profileSnapshots != null) {
+                try {
+                    profileSnapshots.requestSnapshot(checkpointableSequenceNumber).join();
+                } catch (CompletionException e) {
+                    // Child shards cannot start until this one is checkpointed, so go ahead regardless
+                    LOG.error("Checkpointing end of shard " + kinesisShardId + " without a profile snapshot", e);
+                }
+            }
+            // Child shards started on this worker take the profiles over.  They may start as soon as this shard's
+            // end is checkpointed, so the profiles are offered first.
+            userProfiles.removeWatermark(watermark);
+            userProfiles.retire();
+            checkpointer.checkpointNow(shutdownInput.getCheckpointer(), null, CHECKPOINT_DRAIN_MILLIS);
+        } else {
+            // Another worker takes the shard over from the last checkpoint, and will retry these itself
+            retries.close();
+            heldRecords.clear();
+            // Hand the profiles over in a snapshot, unless the lease is already lost and the next owner may be
+            // writing its own.  The next owner replays from the last checkpoint, whose snapshot suffices anyway.
+            if (profileSnapshots != null && shutdownInput.getShutdownReason() == ShutdownReason.REQUESTED
+                    && checkpointableSequenceNumber != null) {
+                try {
+                    profileSnapshots.requestSnapshot(checkpointableSequenceNumber).join();
+                    // Checkpoint where the snapshot stands, so that whoever takes the shard on can restore it
+                    checkpointer.checkpointNow(shutdownInput.getCheckpointer(), checkpointableSequenceNumber,
+                            CHECKPOINT_DRAIN_MILLIS);
+                } catch (CompletionException e) {
+                    LOG.warn("Giving shard " + kinesisShardId + " up without a final profile snapshot", e);
+                }
+            }
+            checkpointer.close();
+            userProfiles.close();
+        }
+        if (profileSnapshots != null) {
+            profileSnapshots.close();
+        }
+        metrics.removeShard(kinesisShardId);
     }
 
 }
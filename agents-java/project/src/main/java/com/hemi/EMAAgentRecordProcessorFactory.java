@@ -6,16 +6,40 @@
 
 package com.hemi;
 
-import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
-import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessorFactory;
+
+import java.io.File;
+
+import com.hemi.metrics.AgentMetrics;
 
 public class EMAAgentRecordProcessorFactory implements IRecordProcessorFactory {
+    private final TagSink tagSink;
+    private final ProcessingLanes processingLanes;
+    private final AgentMetrics metrics;
+    private final File snapshotDirectory;
+    private final ShardLineage shardLineage;
+    private final DeadLetterStore deadLetters;
+    private final DetectorTable detectors;
+
+    public EMAAgentRecordProcessorFactory(TagSink tagSink, ProcessingLanes processingLanes, AgentMetrics metrics,
+                                          File snapshotDirectory, ShardLineage shardLineage,
+                                          DeadLetterStore deadLetters, DetectorTable detectors) {
+        this.tagSink = tagSink;
+        this.processingLanes = processingLanes;
+        this.metrics = metrics;
+        this.snapshotDirectory = snapshotDirectory;
+        this.shardLineage = shardLineage;
+        this.deadLetters = deadLetters;
+        this.detectors = detectors;
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
     public IRecordProcessor createProcessor() {
-        return new EMAAgentRecordProcessor();
+        return new EMAAgentRecordProcessor(tagSink, processingLanes, metrics, snapshotDirectory, shardLineage,
+                deadLetters, detectors);
     }
 }
@@ -0,0 +1,165 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Pulls the eventName, userSessionId, userId and timestamp fields out of a UTF-8 JSON event by streaming over its
+ * tokens, without decoding the record into a String or building a tree.  The event name is compared in
+ * place against the names of interest, and parsing stops as soon as an event turns out to be of no interest.
+ *
+ * A parser keeps the fields of the last event parsed, so each processing thread needs its own.
+ */
+public class EventParser {
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final char[][] eventNames;
+    private byte[] copyBuffer = new byte[1024];
+
+    // Fields of the last event parsed
+    private String userSessionId;
+    private String userId;
+    private long timestampMillis;
+
+    /**
+     * @param eventNames the names of the events to parse fully; others are skipped
+     */
+    public EventParser(String... eventNames) {
+        this.eventNames = new char[eventNames.length][];
+        for (int i = 0; i < eventNames.length; i++) {
+            this.eventNames[i] = eventNames[i].toCharArray();
+        }
+    }
+
+    /**
+     * Parse an event from the remaining bytes of the buffer, leaving its position unchanged.
+     *
+     * @return the index, in the constructor's list, of the event's name; or -1 if the event is of no interest
+     * @throws IOException if the data is not a JSON object
+     */
+    public int parse(ByteBuffer data) throws IOException {
+        userSessionId = null;
+        userId = null;
+        timestampMillis = -1L;
+
+        byte[] bytes;
+        int offset;
+        int length = data.remaining();
+        if (data.hasArray()) {
+            bytes = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            if (copyBuffer.length < length) {
+                copyBuffer = new byte[Math.max(length, copyBuffer.length * 2)];
+            }
+            data.duplicate().get(copyBuffer, 0, length);
+            bytes = copyBuffer;
+            offset = 0;
+        }
+
+        int eventIndex = -1;
+        boolean eventNameSeen = false;
+        JsonParser parser = jsonFactory.createParser(bytes, offset, length);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("Event is not a JSON object", parser.getCurrentLocation());
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                // Field names are canonicalized by the parser, so matching them allocates nothing
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals("eventName")) {
+                    eventNameSeen = true;
+                    eventIndex = value.isScalarValue() ? matchEventName(parser) : -1;
+                    if (eventIndex < 0) {
+                        return -1;
+                    }
+                } else if (field.equals("userSessionId")) {
+                    userSessionId = textOf(parser, value);
+                } else if (field.equals("userId")) {
+                    userId = textOf(parser, value);
+                } else if (field.equals("timestamp")) {
+                    timestampMillis = timestampOf(parser, value);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return eventNameSeen ? eventIndex : -1;
+    }
+
+    /** @return the userSessionId of the last event parsed, or null if it had none */
+    public String getUserSessionId() { return this.userSessionId; }
+
+    /** @return the userId of the last event parsed, or null if it had none */
+    public String getUserId() { return this.userId; }
+
+    /**
+     * @return when the last event parsed happened, in epoch milliseconds, or -1 if it had no valid timestamp
+     */
+    public long getTimestampMillis() { return this.timestampMillis; }
+
+    private int matchEventName(JsonParser parser) throws IOException {
+        char[] text = parser.getTextCharacters();
+        int offset = parser.getTextOffset();
+        int length = parser.getTextLength();
+        for (int i = 0; i < eventNames.length; i++) {
+            char[] name = eventNames[i];
+            if (name.length == length && regionMatches(name, text, offset)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(char[] name, char[] text, int offset) {
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] != text[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Timestamps are epoch milliseconds or ISO-8601 instants; anything else is treated as missing
+    private static long timestampOf(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT) {
+            return (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) ? -1L
+                    : Math.max(-1L, parser.getLongValue());
+        }
+        String text = textOf(parser, value);
+        if (text == null) {
+            return -1L;
+        }
+        try {
+            return Math.max(-1L, Instant.parse(text).toEpochMilli());
+        } catch (DateTimeParseException | ArithmeticException e) {
+            return -1L;
+        }
+    }
+
+    // Empty and non-scalar values are treated as missing
+    private static String textOf(JsonParser parser, JsonToken value) throws IOException {
+        if (!value.isScalarValue()) {
+            parser.skipChildren();
+            return null;
+        }
+        String text = parser.getText();
+        return (text == null || text.isEmpty()) ? null : text;
+    }
+}
@@ -0,0 +1,21 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessorFactory;
+
+/**
+ * A stream of events for the agent to process.  Sources deliver events as Kinesis records to processors from
+ * the given factory, following the KCL's record processor lifecycle, so the same processing logic serves
+ * every source.
+ */
+public interface EventSource {
+    /**
+     * Deliver events until the source is exhausted or the worker is shut down.
+     */
+    void run(IRecordProcessorFactory recordProcessorFactory) throws Exception;
+}
@@ -0,0 +1,108 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.BiConsumer;
+
+import com.hemi.user.UserProfile;
+import com.hemi.user.UserProfiles;
+import com.hemi.user.VisitResult;
+import com.hemi.user.VisitWindows;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Tags users who visit stores often, counting each session's store visits along with those of the other
+ * sessions its user has logged in with on the same shard; a user's sessions on other shards are counted apart,
+ * as {@link UserProfiles} describes.  Users are scored in each of the {@link VisitWindows}; the first window's
+ * tag is isFrequentVisitor, and each other window's is isFrequentVisitor. followed by its name.
+ */
+public class FrequentVisitorDetector implements Detector {
+    private static final Log LOG = LogFactory.getLog(FrequentVisitorDetector.class);
+    private static final String IS_FREQUENT_VISITOR_TAG = "isFrequentVisitor";
+
+    // Tag only on frequent visitor status changes, optionally re-asserting the tag for users who stay frequent
+    private static final long TAG_REASSERT_INTERVAL_MILLIS = Long.getLong("ema.tags.reassertIntervalMillis", 0L);
+    private static final int TAG_SUPPRESSION_CAPACITY = Integer.getInteger("ema.tags.suppressionCapacity", 1000000);
+    private final String[] tags = new String[VisitWindows.windowCount()];
+    private final FrequentVisitorTagFilter[] frequentVisitorTags =
+            new FrequentVisitorTagFilter[VisitWindows.windowCount()];
+
+    public FrequentVisitorDetector() {
+        for (int i = 0; i < tags.length; i++) {
+            VisitWindows.Window window = VisitWindows.window(i);
+            tags[i] = (i == 0) ? IS_FREQUENT_VISITOR_TAG : IS_FREQUENT_VISITOR_TAG + "." + window.getName();
+            frequentVisitorTags[i] = new FrequentVisitorTagFilter(TAG_REASSERT_INTERVAL_MILLIS, window.durationMillis(),
+                    TAG_SUPPRESSION_CAPACITY / tags.length);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getName() { return "frequentVisitor"; }
+
+    /** {@inheritDoc} */
+    @Override
+    public Collection<String> getEventNames() { return Arrays.asList("userSessionBecomesActive", "userVisitsStore"); }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Users who are frequent visitors in the restored profiles were tagged no later than their last visit, so
+     * that is when the tag filters take them to have been tagged.
+     */
+    @Override
+    public void profilesRestored(UserProfiles userProfiles) {
+        userProfiles.forEachProfile(new BiConsumer<String, UserProfile>() {
+            @Override
+            public void accept(String key, UserProfile profile) {
+                for (int i = 0; i < tags.length; i++) {
+                    if (profile.isFrequentVisitor(i)) {
+                        frequentVisitorTags[i].remember(key, profile.getLastVisitMillis());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws InvalidEventException if the event has no userSessionId; a userId is optional
+     */
+    @Override
+    public void detect(DetectedEvent event, TagSink tagSink) {
+        String userSessionId = event.getUserSessionId();
+        if (userSessionId == null) {
+            throw new InvalidEventException(event.getEventName() + " event has no userSessionId");
+        }
+        String userId = event.getUserId();
+        long now = event.getEventTimeMillis();
+
+        int visit = event.getUserProfiles().recordUserVisit(userSessionId, userId, now);
+        for (int i = 0; i < tags.length; i++) {
+            VisitResult visitResult = VisitWindows.resultOf(visit, i);
+            if (!frequentVisitorTags[i].shouldEmit(userSessionId, userId, visitResult, now)) {
+                continue;
+            }
+            // put user tagging event into the stream; a tag which has already expired withdraws it
+            if (visitResult.isFrequentVisitor()) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Spotted frequent visitor: " + userId + ", " + userSessionId + " in " + tags[i]);
+                }
+                tagSink.emitTag(userSessionId, userId, tags[i], now + frequentVisitorTags[i].tagLifetimeMillis());
+            } else {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("No longer a frequent visitor: " + userId + ", " + userSessionId + " in " + tags[i]);
+                }
+                tagSink.emitTag(userSessionId, userId, tags[i], now);
+            }
+        }
+    }
+}
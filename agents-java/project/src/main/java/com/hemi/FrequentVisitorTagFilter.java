@@ -0,0 +1,113 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hemi.user.VisitResult;
+
+/**
+ * Decides which visits produce an isFrequentVisitor tag event.  Tags go out when a user becomes, or stops
+ * being, a frequent visitor, and, if a re-assert interval is configured, again once that interval has passed
+ * for a user who is still frequent.
+ *
+ * A bounded cache remembers when each user was last tagged, so that a profile which is rebuilt from scratch,
+ * for example after eviction, does not tag its user again while the earlier tag is still live.  The cache is
+ * not written to snapshots.  Profiles restored from a snapshot keep their frequent visitor status, so they do not
+ * tag their users again anyway; for those rebuilt later, the cache is seeded from the restored profiles with
+ * {@link #remember}.
+ */
+public class FrequentVisitorTagFilter {
+    private static final int CACHE_STRIPES = 64;
+
+    private final long reassertIntervalMillis;
+    private final long suppressionMillis;
+    private final List<Map<String, Long>> lastTagged;
+
+    /**
+     * @param reassertIntervalMillis how often to repeat the tag for a user who stays frequent, or 0 for never
+     * @param suppressionMillis how long after tagging a user to suppress another becomes-frequent tag
+     * @param capacity how many users to remember in total
+     */
+    public FrequentVisitorTagFilter(long reassertIntervalMillis, long suppressionMillis, int capacity) {
+        this.reassertIntervalMillis = reassertIntervalMillis;
+        this.suppressionMillis = suppressionMillis;
+        this.lastTagged = new ArrayList<Map<String, Long>>(CACHE_STRIPES);
+
+        final int stripeCapacity = Math.max(1, capacity / CACHE_STRIPES);
+        for (int i = 0; i < CACHE_STRIPES; i++) {
+            lastTagged.add(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > stripeCapacity;
+                }
+            });
+        }
+    }
+
+    private Map<String, Long> stripeOf(String key) {
+        return lastTagged.get((key.hashCode() & 0x7fffffff) % CACHE_STRIPES);
+    }
+
+    /** How long a tag emitted now should stay live for downstream agents. */
+    public long tagLifetimeMillis() {
+        return (reassertIntervalMillis > 0) ? Math.max(2 * reassertIntervalMillis, suppressionMillis)
+                : suppressionMillis;
+    }
+
+    /**
+     * @return true if a tag event reflecting the visit result should be emitted for this user
+     */
+    public boolean shouldEmit(String userSessionId, String userId, VisitResult result, long nowMillis) {
+        if (result == VisitResult.INFREQUENT || (result == VisitResult.FREQUENT && reassertIntervalMillis <= 0)) {
+            return false;
+        }
+
+        String key = (userId != null) ? userId : userSessionId;
+        Map<String, Long> stripe = stripeOf(key);
+        synchronized (stripe) {
+            Long tagged = stripe.get(key);
+            switch (result) {
+                case STOPPED_BEING_FREQUENT:
+                    stripe.remove(key);
+                    return true;
+                case BECAME_FREQUENT:
+                    if (tagged != null && nowMillis - tagged < suppressionMillis) {
+                        return false;
+                    }
+                    break;
+                default:
+                    if (tagged != null && nowMillis - tagged < reassertIntervalMillis) {
+                        return false;
+                    }
+                    break;
+            }
+            stripe.put(key, nowMillis);
+            return true;
+        }
+    }
+
+    /**
+     * Remember that a user was tagged, unless a later tag is already remembered; for seeding the cache with
+     * the users of restored profiles.
+     *
+     * @param key the user's userId, or session id if unauthenticated
+     * @param taggedMillis when the user was tagged, or a time no earlier than that
+     */
+    public void remember(String key, long taggedMillis) {
+        Map<String, Long> stripe = stripeOf(key);
+        synchronized (stripe) {
+            Long tagged = stripe.get(key);
+            if (tagged == null || tagged < taggedMillis) {
+                stripe.put(key, taggedMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+/**
+ * Thrown for an event which lacks a field it needs, or has one that cannot be used.  Such an event would fail
+ * the same way on every retry, so its record goes straight to the dead letter store, with the exception's
+ * message as the reason.
+ */
+public class InvalidEventException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidEventException(String reason) {
+        super(reason);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessorFactory;
+import com.amazonaws.services.kinesis.clientlibrary.lib.worker.InitialPositionInStream;
+import com.amazonaws.services.kinesis.clientlibrary.lib.worker.KinesisClientLibConfiguration;
+import com.amazonaws.services.kinesis.clientlibrary.lib.worker.Worker;
+
+import static com.hemi.EMAAgent.AGENT_NAME;
+import static com.hemi.EMAAgent.KINESIS_ENDPOINT;
+import static com.hemi.EMAAgent.STREAM_NAME;
+
+/**
+ * Reads the EMA event stream from Kinesis with a KCL worker.
+ */
+public class KinesisEventSource implements EventSource {
+    private static final Log LOG = LogFactory.getLog(KinesisEventSource.class);
+
+    // Initial position in the stream when the application starts up for the first time.
+    // Position can be one of LATEST (most recent data) or TRIM_HORIZON (oldest available data)
+    private static final InitialPositionInStream INITIAL_POSITION_IN_STREAM =
+            InitialPositionInStream.LATEST;
+
+    private final AWSCredentialsProvider credentialsProvider;
+
+    public KinesisEventSource(AWSCredentialsProvider credentialsProvider) {
+        this.credentialsProvider = credentialsProvider;
+    }
+
+    @Override
+    public void run(IRecordProcessorFactory recordProcessorFactory) {
+        KinesisClientLibConfiguration kinesisClientLibConfiguratcion =
+                new KinesisClientLibConfiguration(AGENT_NAME, STREAM_NAME, credentialsProvider,"1");
+
+        kinesisClientLibConfiguratcion.withKinesisEndpoint(KINESIS_ENDPOINT);
+        kinesisClientLibConfiguratcion.withInitialPositionInStream(INITIAL_POSITION_IN_STREAM);
+
+        Worker worker = new Worker.Builder()
+                .recordProcessorFactory(recordProcessorFactory)
+                .config(kinesisClientLibConfiguratcion)
+                .build();
+
+        LOG.info("Running " + AGENT_NAME + " to process stream " + STREAM_NAME + " as worker 1...\n");
+        worker.run();
+    }
+}
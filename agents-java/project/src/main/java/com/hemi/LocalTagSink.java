@@ -0,0 +1,48 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes userTag events as newline-delimited JSON, for replays that run without Kinesis.
+ */
+public class LocalTagSink implements TagSink {
+    private static final Log LOG = LogFactory.getLog(LocalTagSink.class);
+
+    private final OutputStream outputStream;
+    private final TagEvents tagEvents;
+
+    public LocalTagSink(OutputStream outputStream) {
+        this.outputStream = new BufferedOutputStream(outputStream, 64 * 1024);
+        this.tagEvents = new TagEvents(this.outputStream);
+    }
+
+    @Override
+    public synchronized void emitTag(String userSessionId, String userId, String tag, long expiresMillis) {
+        try {
+            tagEvents.write(userSessionId, userId, tag, expiresMillis);
+            outputStream.write('\n');
+        } catch (IOException e) {
+            LOG.error("Couldn't write tag " + tag + " for " + userId + ", " + userSessionId, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            LOG.error("Couldn't close tag output", e);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessorFactory;
+import com.amazonaws.services.kinesis.clientlibrary.lib.worker.ShutdownReason;
+import com.amazonaws.services.kinesis.clientlibrary.types.InitializationInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ProcessRecordsInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownInput;
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Replays archived events from newline-delimited JSON files, one event per line.  Files are memory-mapped a
+ * region at a time and handed to a single record processor in batches, with each record's data a slice of the
+ * mapping rather than a copy of the line.  The slices are direct buffers, which the {@link EventParser} cannot
+ * read in place, so it copies each event it parses into a buffer it reuses; that is the only copy made.  Each
+ * file is treated as a shard whose sequence numbers are the byte offsets of its lines.  Archived lines keep no
+ * arrival time, so replayed records are given one: by default the time they are replayed, as if they had just
+ * reached the stream, or with ema.replay.arrivalTime=file the archive file's last modification time.  Events
+ * without a timestamp of their own are scored by it.
+ */
+public class MappedFileEventSource implements EventSource {
+    private static final Log LOG = LogFactory.getLog(MappedFileEventSource.class);
+
+    private static final long MAPPED_REGION_BYTES = 256L * 1024 * 1024;
+    private static final byte[] SESSION_ID_FIELD = "\"userSessionId\"".getBytes(StandardCharsets.UTF_8);
+
+    // "now" to give replayed records the time each batch is delivered as their arrival time, or "file" to give
+    // them their file's last modification time
+    private static final String ARRIVAL_TIME = System.getProperty("ema.replay.arrivalTime", "now");
+
+    private final List<File> files;
+    private final int batchSize;
+
+    public MappedFileEventSource(List<File> files) {
+        this(files, Integer.getInteger("ema.replay.batchSize", 1000));
+    }
+
+    /**
+     * @throws IllegalArgumentException if ema.replay.arrivalTime is neither "now" nor "file"
+     */
+    public MappedFileEventSource(List<File> files, int batchSize) {
+        if (!ARRIVAL_TIME.equals("now") && !ARRIVAL_TIME.equals("file")) {
+            throw new IllegalArgumentException("ema.replay.arrivalTime must be now or file, not " + ARRIVAL_TIME);
+        }
+        this.files = files;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void run(IRecordProcessorFactory recordProcessorFactory) throws IOException {
+        for (File file : files) {
+            IRecordProcessor recordProcessor = recordProcessorFactory.createProcessor();
+            LocalCheckpointer checkpointer = new LocalCheckpointer(file.getPath());
+
+            recordProcessor.initialize(new InitializationInput().withShardId("file:" + file.getPath()));
+            long start = System.currentTimeMillis();
+            long events = replay(file, recordProcessor, checkpointer);
+            recordProcessor.shutdown(new ShutdownInput()
+                    .withShutdownReason(ShutdownReason.TERMINATE)
+                    .withCheckpointer(checkpointer));
+
+            long elapsed = Math.max(1L, System.currentTimeMillis() - start);
+            LOG.info("Replayed " + events + " events from " + file + " in " + elapsed + "ms ("
+                    + (events * 1000L / elapsed) + " events/s)");
+        }
+    }
+
+    private long replay(File file, IRecordProcessor recordProcessor, LocalCheckpointer checkpointer)
+            throws IOException {
+        long events = 0L;
+        boolean fileTime = ARRIVAL_TIME.equals("file");
+        Date arrival = new Date(fileTime ? file.lastModified() : System.currentTimeMillis());
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            long regionStart = 0L;
+            List<Record> batch = new ArrayList<Record>(batchSize);
+            while (regionStart < size) {
+                long regionBytes = Math.min(MAPPED_REGION_BYTES, size - regionStart);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionBytes);
+
+                // Only whole lines are taken from a region; a partial last line is mapped again with the next
+                int lineStart = 0;
+                int limit = (int) regionBytes;
+                while (lineStart < limit) {
+                    int lineEnd = indexOf(region, (byte) '\n', lineStart, limit);
+                    if (lineEnd < 0) {
+                        if (regionStart + limit < size) {
+                            if (lineStart == 0) {
+                                throw new IOException("Line at offset " + regionStart + " of " + file
+                                        + " is longer than " + MAPPED_REGION_BYTES + " bytes");
+                            }
+                            break;
+                        }
+                        lineEnd = limit;
+                    }
+                    if (lineEnd > lineStart) {
+                        batch.add(toRecord(region, lineStart, lineEnd, regionStart + lineStart, arrival));
+                        events++;
+                        if (batch.size() >= batchSize) {
+                            deliver(batch, recordProcessor, checkpointer);
+                            batch = new ArrayList<Record>(batchSize);
+                            if (!fileTime) {
+                                arrival = new Date();
+                            }
+                        }
+                    }
+                    lineStart = lineEnd + 1;
+                }
+                regionStart += Math.min(lineStart, limit);
+            }
+            if (!batch.isEmpty()) {
+                deliver(batch, recordProcessor, checkpointer);
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+        return events;
+    }
+
+    private static void deliver(List<Record> batch, IRecordProcessor recordProcessor,
+                                LocalCheckpointer checkpointer) {
+        checkpointer.deliveredSequenceNumber = batch.get(batch.size() - 1).getSequenceNumber();
+        recordProcessor.processRecords(new ProcessRecordsInput()
+                .withRecords(batch)
+                .withCheckpointer(checkpointer)
+                .withMillisBehindLatest(0L));
+    }
+
+    private static Record toRecord(MappedByteBuffer region, int from, int to, long offset, Date arrival) {
+        ByteBuffer data = region.duplicate();
+        data.limit(to);
+        data.position(from);
+        return new Record()
+                .withSequenceNumber(Long.toString(offset))
+                .withPartitionKey(partitionKeyOf(data))
+                .withApproximateArrivalTimestamp(arrival)
+                .withData(data.slice());
+    }
+
+    /**
+     * The partition key the event would have been put into the stream with: its userSessionId, which is found by
+     * scanning for the field rather than parsing the event.  Events without one share an empty key.
+     */
+    private static String partitionKeyOf(ByteBuffer data) {
+        int end = data.limit();
+        int field = indexOf(data, SESSION_ID_FIELD, data.position(), end);
+        if (field < 0) {
+            return "";
+        }
+        int i = field + SESSION_ID_FIELD.length;
+        while (i < end && (data.get(i) == ' ' || data.get(i) == ':')) {
+            i++;
+        }
+        if (i >= end || data.get(i) != '"') {
+            return "";
+        }
+        int valueEnd = indexOf(data, (byte) '"', ++i, end);
+        if (valueEnd < 0) {
+            return "";
+        }
+        byte[] value = new byte[valueEnd - i];
+        for (int j = 0; j < value.length; j++) {
+            value[j] = data.get(i + j);
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] pattern, int from, int to) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer.get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Keeps the checkpoint of a replay in memory; a replay always starts from the beginning of its files.
+     */
+    private static class LocalCheckpointer implements IRecordProcessorCheckpointer {
+        private final String shardId;
+        private volatile String lastSequenceNumber = null;
+        private volatile String deliveredSequenceNumber = null;   // Last record handed to the processor
+
+        LocalCheckpointer(String shardId) {
+            this.shardId = shardId;
+        }
+
+        @Override
+        public void checkpoint() {
+            checkpoint(deliveredSequenceNumber);
+        }
+
+        @Override
+        public void checkpoint(Record record) {
+            checkpoint(record.getSequenceNumber());
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber) {
+            lastSequenceNumber = sequenceNumber;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Checkpointed " + shardId + " at offset " + sequenceNumber);
+            }
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber, long subSequenceNumber) {
+            checkpoint(sequenceNumber);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A fixed set of single-threaded lanes, shared by the record processors of a worker, for processing a batch of
+ * records in parallel.  Each record goes to the lane picked by hashing its key, and a lane runs its records in
+ * batch order, so records with the same key are processed in the order they arrived.
+ */
+public class ProcessingLanes {
+    private static final Log LOG = LogFactory.getLog(ProcessingLanes.class);
+
+    private final ExecutorService[] lanes;
+
+    public ProcessingLanes(int laneCount) {
+        lanes = new ExecutorService[laneCount];
+        for (int i = 0; i < lanes.length; i++) {
+            final String name = "ProcessingLane-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    public int getLaneCount() { return lanes.length; }
+
+    /**
+     * Process every item of a batch, returning once all of them have been processed.
+     *
+     * @param keyOf gives the key which orders an item relative to others
+     * @param action processes one item; it should handle its own failures
+     */
+    public <T> void processAll(List<T> items, Function<T, String> keyOf, final Consumer<T> action) {
+        List<List<T>> byLane = new ArrayList<List<T>>(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            byLane.add(new ArrayList<T>());
+        }
+        for (T item : items) {
+            byLane.get(laneFor(keyOf.apply(item))).add(item);
+        }
+
+        int busyLanes = 0;
+        for (List<T> laneItems : byLane) {
+            if (!laneItems.isEmpty()) {
+                busyLanes++;
+            }
+        }
+
+        final CountDownLatch done = new CountDownLatch(busyLanes);
+        for (int i = 0; i < lanes.length; i++) {
+            final List<T> laneItems = byLane.get(i);
+            if (laneItems.isEmpty()) {
+                continue;
+            }
+            lanes[i].execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (T item : laneItems) {
+                            action.accept(item);
+                        }
+                    } catch (Throwable t) {
+                        LOG.error("Caught throwable while processing a batch in lane", t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        // The caller may checkpoint once this returns, so wait out interrupts rather than return early
+        boolean interrupted = false;
+        while (done.getCount() > 0) {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    private int laneFor(String key) {
+        int h = (key != null) ? key.hashCode() : 0;
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % lanes.length;
+    }
+}
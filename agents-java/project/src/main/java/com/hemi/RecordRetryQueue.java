@@ -0,0 +1,221 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Retries the records of a shard whose processing failed transiently, on background threads and with jittered
+ * exponential backoff, so that the shard's other records keep flowing.  Records with the same partition key as
+ * one awaiting a retry are parked behind it and processed once it is done, so each key's records are still
+ * processed in order.  A record which fails every attempt is given up on.
+ */
+public class RecordRetryQueue {
+    private static final Log LOG = LogFactory.getLog(RecordRetryQueue.class);
+
+    // Shared by the retry queues of every shard
+    private static final ScheduledExecutorService retryThreads = Executors.newScheduledThreadPool(
+            Integer.getInteger("ema.retry.threads", 2), new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RecordRetryQueue-" + count++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final Predicate<Record> attempt;
+    private final Consumer<Record> hold;
+    private final Consumer<Record> giveUp;
+    private final long backoffMillis;
+    private final int maxAttempts;
+
+    // Records awaiting a retry, and those parked behind them, by partition key; the head of each is retried next
+    private final Map<String, Deque<Record>> pendingByKey = new HashMap<String, Deque<Record>>();
+    private int pendingRecords = 0;
+    private boolean closed = false;
+
+    /**
+     * @param attempt processes a record, returning false if it failed and should be tried again
+     * @param hold notes a record about to be parked, before it can be attempted
+     * @param giveUp handles a record which failed its last attempt
+     */
+    public RecordRetryQueue(Predicate<Record> attempt, Consumer<Record> hold, Consumer<Record> giveUp) {
+        this(attempt, hold, giveUp, Long.getLong("ema.retry.backoffMillis", 100L),
+                Integer.getInteger("ema.retry.maxAttempts", 10));
+    }
+
+    public RecordRetryQueue(Predicate<Record> attempt, Consumer<Record> hold, Consumer<Record> giveUp,
+                            long backoffMillis, int maxAttempts) {
+        this.attempt = attempt;
+        this.hold = hold;
+        this.giveUp = giveUp;
+        this.backoffMillis = backoffMillis;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Park a record behind an earlier one with the same partition key which is awaiting a retry.
+     *
+     * @return false if there is no such record, and this one may be processed now
+     */
+    public synchronized boolean park(Record record) {
+        Deque<Record> pending = pendingByKey.get(record.getPartitionKey());
+        if (pending == null) {
+            return false;
+        }
+        hold.accept(record);
+        pending.addLast(record);
+        pendingRecords++;
+        return true;
+    }
+
+    /** Retry a record which failed its first attempt, and which was not parked. */
+    public synchronized void retry(Record record) {
+        if (park(record)) {
+            return;
+        }
+        Deque<Record> pending = new ArrayDeque<Record>();
+        pending.add(record);
+        pendingByKey.put(record.getPartitionKey(), pending);
+        pendingRecords++;
+        schedule(record.getPartitionKey(), 1);
+    }
+
+    /** Number of records awaiting a retry or parked behind one. */
+    public synchronized int size() {
+        return pendingRecords;
+    }
+
+    /** Wait until fewer than the given number of records are pending. */
+    public synchronized void awaitBelow(int limit) throws InterruptedException {
+        while (pendingRecords >= Math.max(1, limit) && !closed) {
+            wait();
+        }
+    }
+
+    /**
+     * Wait for every pending record to be processed or given up on, giving up on those left after the timeout.
+     */
+    public void drain(long timeoutMillis) throws InterruptedException {
+        List<Record> abandoned = new ArrayList<Record>();
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining = timeoutMillis;
+            while (pendingRecords > 0 && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            for (Deque<Record> pending : pendingByKey.values()) {
+                abandoned.addAll(pending);
+            }
+            clear();
+        }
+        for (Record record : abandoned) {
+            giveUp.accept(record);
+        }
+    }
+
+    /** Drop every pending record without processing it; retries already running finish, but nothing more. */
+    public synchronized void close() {
+        clear();
+        closed = true;
+        notifyAll();
+    }
+
+    private void clear() {
+        pendingByKey.clear();
+        pendingRecords = 0;
+        notifyAll();
+    }
+
+    private void schedule(final String partitionKey, final int attemptNumber) {
+        // Exponential backoff with jitter
+        long ceiling = backoffMillis << Math.min(attemptNumber, 10);
+        retryThreads.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    retryHead(partitionKey, attemptNumber);
+                } catch (Throwable t) {
+                    LOG.error("Caught throwable while retrying records with partition key " + partitionKey, t);
+                }
+            }
+        }, ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1), TimeUnit.MILLISECONDS);
+    }
+
+    private void retryHead(String partitionKey, int attemptNumber) {
+        Deque<Record> pending;
+        Record record;
+        synchronized (this) {
+            pending = pendingByKey.get(partitionKey);
+            if (pending == null) {
+                return;
+            }
+            record = pending.peekFirst();
+        }
+
+        boolean done = attempt.test(record);
+        if (!done && attemptNumber >= maxAttempts) {
+            giveUp.accept(record);
+            done = true;
+        }
+        if (!done) {
+            synchronized (this) {
+                if (pendingByKey.get(partitionKey) == pending) {
+                    schedule(partitionKey, attemptNumber + 1);
+                }
+            }
+            return;
+        }
+
+        // Process the records parked behind this one, until one of them fails in turn
+        while (true) {
+            synchronized (this) {
+                if (pendingByKey.get(partitionKey) != pending) {
+                    return;     // Closed or drained meanwhile
+                }
+                pending.pollFirst();
+                pendingRecords--;
+                if (pending.isEmpty()) {
+                    pendingByKey.remove(partitionKey);
+                    notifyAll();
+                    return;
+                }
+                record = pending.peekFirst();
+                notifyAll();
+            }
+            if (!attempt.test(record)) {
+                synchronized (this) {
+                    if (pendingByKey.get(partitionKey) == pending) {
+                        schedule(partitionKey, 1);
+                    }
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.hemi.metrics.ShardMetrics;
+import com.hemi.user.ProfileSnapshots;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+
+/**
+ * Checkpoints a shard from a background thread, so a throttled checkpoint never holds up its records.  A
+ * checkpoint is due once enough records or bytes have been processed since the last one, or enough time has
+ * passed, though never more often than the minimum interval.  Each is made at the sequence number it was due
+ * at, after the profiles have been snapshotted if snapshots are enabled.  Checkpoints which become due while
+ * another is in flight or backing off are coalesced, so only the latest is made.
+ */
+public class ShardCheckpointer {
+    private static final Log LOG = LogFactory.getLog(ShardCheckpointer.class);
+
+    // Shared by the checkpointers of every shard
+    private static final ScheduledExecutorService checkpointThreads = Executors.newScheduledThreadPool(
+            Integer.getInteger("ema.checkpoint.threads", 1), new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ShardCheckpointer-" + count++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static final long RECORDS_PER_CHECKPOINT = Long.getLong("ema.checkpoint.records", 100000L);
+    private static final long BYTES_PER_CHECKPOINT = Long.getLong("ema.checkpoint.bytes", 64L * 1024 * 1024);
+    private static final long MAX_INTERVAL_MILLIS = Long.getLong("ema.checkpoint.intervalMillis", 60000L);
+    private static final long MIN_INTERVAL_MILLIS = Long.getLong("ema.checkpoint.minIntervalMillis", 10000L);
+
+    // Backoff and retry settings for throttled checkpoints
+    private static final long BACKOFF_TIME_IN_MILLIS = Long.getLong("ema.checkpoint.backoffMillis", 1000L);
+    private static final int NUM_RETRIES = Integer.getInteger("ema.checkpoint.maxAttempts", 10);
+
+    private final String shardId;
+    private final ShardMetrics shardMetrics;
+    private final ProfileSnapshots profileSnapshots;
+
+    // Progress since the last checkpoint became due, kept by the record processing thread
+    private long records = 0L;
+    private long bytes = 0L;
+    private long dueMillis = System.currentTimeMillis();
+    private String dueSequenceNumber = null;
+
+    // The latest checkpoint waiting to be made
+    private IRecordProcessorCheckpointer pendingCheckpointer = null;
+    private String pendingSequenceNumber = null;
+    private long pendingRecords = 0L;
+    private boolean running = false;
+    private boolean closed = false;
+
+    /**
+     * @param profileSnapshots where to snapshot the profiles before each checkpoint, or null to checkpoint
+     *                         without them
+     */
+    public ShardCheckpointer(String shardId, ShardMetrics shardMetrics, ProfileSnapshots profileSnapshots) {
+        this.shardId = shardId;
+        this.shardMetrics = shardMetrics;
+        this.profileSnapshots = profileSnapshots;
+    }
+
+    /**
+     * Account for a batch of records, and checkpoint if that makes a checkpoint due.
+     *
+     * @param sequenceNumber the last record before which every record has been processed, or null if there
+     *                       is none yet
+     */
+    public void processed(IRecordProcessorCheckpointer checkpointer, String sequenceNumber, int batchRecords,
+                          long batchBytes) {
+        records += batchRecords;
+        bytes += batchBytes;
+        if (sequenceNumber == null || sequenceNumber.equals(dueSequenceNumber)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long elapsed = now - dueMillis;
+        if (elapsed < MIN_INTERVAL_MILLIS
+                || (records < RECORDS_PER_CHECKPOINT && bytes < BYTES_PER_CHECKPOINT
+                        && elapsed < MAX_INTERVAL_MILLIS)) {
+            return;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Checkpoint of shard " + shardId + " due at " + sequenceNumber + " after " + records
+                    + " records, " + bytes + " bytes and " + elapsed + " ms");
+        }
+        records = 0L;
+        bytes = 0L;
+        dueMillis = now;
+        dueSequenceNumber = sequenceNumber;
+        request(checkpointer, sequenceNumber, shardMetrics.getRecords());
+    }
+
+    private void request(final IRecordProcessorCheckpointer checkpointer, final String sequenceNumber,
+                         final long recordsAtSequenceNumber) {
+        if (profileSnapshots == null) {
+            enqueue(checkpointer, sequenceNumber, recordsAtSequenceNumber);
+            return;
+        }
+        // The records' visits must be in a durable snapshot before the stream position moves past them
+        profileSnapshots.requestSnapshot(sequenceNumber).thenRun(new Runnable() {
+            @Override
+            public void run() {
+                enqueue(checkpointer, sequenceNumber, recordsAtSequenceNumber);
+            }
+        });
+    }
+
+    private synchronized void enqueue(IRecordProcessorCheckpointer checkpointer, String sequenceNumber,
+                                      long recordsAtSequenceNumber) {
+        if (closed) {
+            return;
+        }
+        pendingCheckpointer = checkpointer;
+        pendingSequenceNumber = sequenceNumber;
+        pendingRecords = recordsAtSequenceNumber;
+        if (!running) {
+            running = true;
+            schedule(1, 0L);
+        }
+    }
+
+    private void schedule(final int attemptNumber, long delayMillis) {
+        checkpointThreads.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpointPending(attemptNumber);
+                } catch (Throwable t) {
+                    LOG.error("Caught throwable while checkpointing shard " + shardId, t);
+                    finish();
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkpointPending(int attemptNumber) {
+        IRecordProcessorCheckpointer checkpointer;
+        String sequenceNumber;
+        long recordsAtSequenceNumber;
+        synchronized (this) {
+            if (closed || pendingSequenceNumber == null) {
+                running = false;
+                notifyAll();
+                return;
+            }
+            checkpointer = pendingCheckpointer;
+            sequenceNumber = pendingSequenceNumber;
+            recordsAtSequenceNumber = pendingRecords;
+            pendingCheckpointer = null;
+            pendingSequenceNumber = null;
+        }
+
+        LOG.info("Checkpointing shard " + shardId + " at " + sequenceNumber);
+        long start = System.nanoTime();
+        try {
+            checkpointer.checkpoint(sequenceNumber);
+            shardMetrics.recordCheckpoint(recordsAtSequenceNumber, System.nanoTime() - start);
+        } catch (ThrottlingException e) {
+            shardMetrics.recordCheckpointFailure();
+            if (attemptNumber >= NUM_RETRIES) {
+                LOG.error("Checkpoint failed after " + attemptNumber + " attempts.", e);
+            } else {
+                LOG.info("Transient issue when checkpointing - attempt " + attemptNumber + " of " + NUM_RETRIES, e);
+                synchronized (this) {
+                    // Retry, unless a later checkpoint has become due meanwhile, which replaces this one
+                    if (pendingSequenceNumber == null) {
+                        pendingCheckpointer = checkpointer;
+                        pendingSequenceNumber = sequenceNumber;
+                        pendingRecords = recordsAtSequenceNumber;
+                    }
+                }
+                // Exponential backoff with jitter
+                long ceiling = BACKOFF_TIME_IN_MILLIS << Math.min(attemptNumber - 1, 6);
+                schedule(attemptNumber + 1, ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1));
+                return;
+            }
+        } catch (ShutdownException se) {
+            // Ignore checkpoint if the processor instance has been shutdown (fail over).
+            LOG.info("Caught shutdown exception, skipping checkpoint.", se);
+            close();
+        } catch (IllegalArgumentException e) {
+            // Behind a checkpoint made meanwhile, such as the one at the end of the shard
+            LOG.info("Skipping checkpoint behind the last one at " + sequenceNumber, e);
+        } catch (InvalidStateException e) {
+            // This indicates an issue with the DynamoDB table (check for table, provisioned IOPS).
+            shardMetrics.recordCheckpointFailure();
+            LOG.error("Cannot save checkpoint to the DynamoDB table used by the Amazon Kinesis Client Library.", e);
+        }
+        finish();
+    }
+
+    private synchronized void finish() {
+        if (!closed && pendingSequenceNumber != null) {
+            schedule(1, 0L);
+        } else {
+            running = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Checkpoint on the calling thread, once any checkpoint in flight is done.  This is for the end of the shard,
+     * which must be checkpointed before its child shards can be processed, and for giving the shard up.
+     *
+     * @param sequenceNumber the sequence number to checkpoint at, or null for the last record delivered
+     */
+    public void checkpointNow(IRecordProcessorCheckpointer checkpointer, String sequenceNumber, long timeoutMillis) {
+        try {
+            close(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while finishing checkpoints of shard " + shardId, e);
+        }
+
+        LOG.info("Checkpointing shard " + shardId + ((sequenceNumber != null) ? " at " + sequenceNumber : ""));
+        for (int i = 0; i < NUM_RETRIES; i++) {
+            long start = System.nanoTime();
+            try {
+                if (sequenceNumber != null) {
+                    checkpointer.checkpoint(sequenceNumber);
+                } else {
+                    checkpointer.checkpoint();
+                }
+                shardMetrics.recordCheckpoint(shardMetrics.getRecords(), System.nanoTime() - start);
+                break;
+            } catch (ShutdownException se) {
+                // Ignore checkpoint if the processor instance has been shutdown (fail over).
+                LOG.info("Caught shutdown exception, skipping checkpoint.", se);
+                break;
+            } catch (IllegalArgumentException e) {
+                // Behind the last checkpoint made
+                LOG.info("Skipping checkpoint behind the last one at " + sequenceNumber, e);
+                break;
+            } catch (ThrottlingException e) {
+                // Backoff and re-attempt checkpoint upon transient failures
+                shardMetrics.recordCheckpointFailure();
+                if (i >= (NUM_RETRIES - 1)) {
+                    LOG.error("Checkpoint failed after " + (i + 1) + " attempts.", e);
+                    break;
+                } else {
+                    LOG.info("Transient issue when checkpointing - attempt " + (i + 1) + " of "
+                            + NUM_RETRIES, e);
+                }
+            } catch (InvalidStateException e) {
+                // This indicates an issue with the DynamoDB table (check for table, provisioned IOPS).
+                shardMetrics.recordCheckpointFailure();
+                LOG.error("Cannot save checkpoint to the DynamoDB table used by the Amazon Kinesis Client Library.", e);
+                break;
+            }
+            try {
+                Thread.sleep(BACKOFF_TIME_IN_MILLIS);
+            } catch (InterruptedException e) {
+                LOG.debug("Interrupted sleep", e);
+            }
+        }
+    }
+
+    /** Drop any checkpoint waiting to be made; one in flight finishes, but nothing more. */
+    public synchronized void close() {
+        closed = true;
+        pendingCheckpointer = null;
+        pendingSequenceNumber = null;
+    }
+
+    /** Drop any checkpoint waiting to be made, and wait for one in flight to finish. */
+    public synchronized void close(long timeoutMillis) throws InterruptedException {
+        close();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (running && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.DescribeStreamResult;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * Where the shards of a stream came from: the shards each was split or merged from, and the range of hash keys
+ * it takes.  A shard started on a worker which also processed its parents takes their profiles over, but only
+ * those of the users whose partition keys hash into its range, as the stream routes them.
+ *
+ * Shards are described once and cached; a shard not yet described, such as a child just created, has the
+ * stream described again.
+ */
+public class ShardLineage {
+    private static final Log LOG = LogFactory.getLog(ShardLineage.class);
+
+    private final AmazonKinesis kinesis;
+    private final String streamName;
+    private final ConcurrentMap<String, Shard> shards = new ConcurrentHashMap<String, Shard>();
+
+    public ShardLineage(AmazonKinesis kinesis, String streamName) {
+        this.kinesis = kinesis;
+        this.streamName = streamName;
+    }
+
+    /**
+     * @return the ids of the shards the shard was split or merged from; none if it has none, or it cannot be
+     *         described, in which case it inherits nothing
+     */
+    public List<String> parentsOf(String shardId) {
+        Shard shard = describe(shardId);
+        if (shard == null) {
+            return Collections.emptyList();
+        }
+        List<String> parents = new ArrayList<String>(2);
+        if (shard.getParentShardId() != null) {
+            parents.add(shard.getParentShardId());
+        }
+        if (shard.getAdjacentParentShardId() != null) {
+            parents.add(shard.getAdjacentParentShardId());
+        }
+        return parents;
+    }
+
+    /**
+     * @return a test of whether a partition key hashes into the shard's range, for use on one thread at a time;
+     *         or null if the shard cannot be described
+     */
+    public Predicate<String> partitionKeysOf(String shardId) {
+        Shard shard = describe(shardId);
+        if (shard == null) {
+            return null;
+        }
+        final BigInteger startingHashKey = new BigInteger(shard.getHashKeyRange().getStartingHashKey());
+        final BigInteger endingHashKey = new BigInteger(shard.getHashKeyRange().getEndingHashKey());
+        final MessageDigest md5 = md5();
+        return new Predicate<String>() {
+            @Override
+            public boolean test(String partitionKey) {
+                // The stream hashes a partition key to the unsigned 128-bit MD5 of its UTF-8 bytes
+                BigInteger hashKey = new BigInteger(1, md5.digest(partitionKey.getBytes(StandardCharsets.UTF_8)));
+                return hashKey.compareTo(startingHashKey) >= 0 && hashKey.compareTo(endingHashKey) <= 0;
+            }
+        };
+    }
+
+    private Shard describe(String shardId) {
+        Shard shard = shards.get(shardId);
+        if (shard != null) {
+            return shard;
+        }
+        try {
+            String exclusiveStartShardId = null;
+            DescribeStreamResult result;
+            do {
+                result = kinesis.describeStream(new DescribeStreamRequest().withStreamName(streamName)
+                        .withExclusiveStartShardId(exclusiveStartShardId));
+                for (Shard described : result.getStreamDescription().getShards()) {
+                    shards.put(described.getShardId(), described);
+                    exclusiveStartShardId = described.getShardId();
+                }
+            } while (result.getStreamDescription().getHasMoreShards() && exclusiveStartShardId != null);
+        } catch (AmazonClientException e) {
+            LOG.warn("Cannot describe stream " + streamName + " for the lineage of shard " + shardId, e);
+            return null;
+        }
+        shard = shards.get(shardId);
+        if (shard == null) {
+            LOG.warn("Stream " + streamName + " has no shard " + shardId);
+        }
+        return shard;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every Java platform supports MD5", e);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+
+import com.hemi.metrics.AgentMetrics;
+
+/**
+ * Puts userTag events into the stream on behalf of every record processor in the worker.
+ *
+ * Tags are queued by the processing threads and sent from background threads, so record processing never
+ * waits on a network round trip.  Queued tags are collected into PutRecords batches of up to 500 records,
+ * waiting up to the linger time for a batch to fill.  Records the stream rejects are retried with backoff.
+ * When too many batches are in flight the queue fills up, and {@link #emitTag} blocks until there is room.
+ */
+public class TagEventProducer implements TagSink {
+    private static final Log LOG = LogFactory.getLog(TagEventProducer.class);
+
+    // PutRecords limits
+    private static final int MAX_RECORDS_PER_REQUEST = 500;
+    private static final int MAX_BYTES_PER_REQUEST = 5 * 1024 * 1024;
+
+    // Backoff and retry settings for records the stream rejects
+    private static final long BACKOFF_TIME_IN_MILLIS = 100L;
+    private static final int NUM_RETRIES = 5;
+
+    private final AmazonKinesis kinesisClient;
+    private final String streamName;
+    private final long lingerMillis;
+    private final AgentMetrics metrics;
+
+    private final BlockingQueue<TagEvent> queue;
+    private final Semaphore inFlightBatches;
+    private final ExecutorService senders;
+    private final Thread batcher;
+    private volatile boolean closed = false;
+
+    // Held to queue a tag, and exclusively to close, so no tag is queued once the batcher may have finished
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+    // Used only by the batcher thread
+    private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
+    private final TagEvents tagEvents = new TagEvents(outputStream);
+    private PutRecordsRequestEntry carriedOver = null;
+
+    public TagEventProducer(AmazonKinesis kinesisClient, String streamName, AgentMetrics metrics) {
+        this(kinesisClient, streamName,
+                Long.getLong("ema.tags.lingerMillis", 100L),
+                Integer.getInteger("ema.tags.queueCapacity", 10000),
+                Integer.getInteger("ema.tags.maxInFlightBatches", 4),
+                metrics);
+    }
+
+    public TagEventProducer(AmazonKinesis kinesisClient, String streamName, long lingerMillis, int queueCapacity,
+                            int maxInFlightBatches, AgentMetrics metrics) {
+        this.kinesisClient = kinesisClient;
+        this.streamName = streamName;
+        this.lingerMillis = lingerMillis;
+        this.metrics = metrics;
+        this.queue = new ArrayBlockingQueue<TagEvent>(queueCapacity);
+        this.inFlightBatches = new Semaphore(maxInFlightBatches);
+        this.senders = Executors.newFixedThreadPool(maxInFlightBatches, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TagEventProducer-sender-" + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        this.batcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runBatcher();
+            }
+        }, "TagEventProducer-batcher");
+        this.batcher.setDaemon(true);
+        this.batcher.start();
+    }
+
+    /**
+     * Queue a userTag event, blocking while the queue is full.
+     *
+     * @throws IllegalStateException if the producer has been closed
+     */
+    @Override
+    public void emitTag(String userSessionId, String userId, String tag, long expiresMillis) {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("TagEventProducer is closed");
+            }
+            queue.put(new TagEvent(userSessionId, userId, tag, expiresMillis));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while queueing tag " + tag + " for " + userId + ", " + userSessionId);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Send everything queued so far and stop the background threads.  This waits for tags being queued to go in,
+     * including any waiting for room in the queue, which the batcher keeps making until then.
+     */
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            batcher.join();
+            senders.shutdown();
+            senders.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while flushing tag events", e);
+        }
+    }
+
+    private void runBatcher() {
+        while (!closed || !queue.isEmpty() || carriedOver != null) {
+            try {
+                List<PutRecordsRequestEntry> batch = nextBatch();
+                if (!batch.isEmpty()) {
+                    submit(batch);
+                }
+            } catch (InterruptedException e) {
+                LOG.debug("Interrupted batcher", e);
+            } catch (Throwable t) {
+                LOG.error("Caught throwable while batching tag events", t);
+            }
+        }
+    }
+
+    private List<PutRecordsRequestEntry> nextBatch() throws InterruptedException {
+        List<PutRecordsRequestEntry> batch = new ArrayList<PutRecordsRequestEntry>();
+        int batchBytes = 0;
+        PutRecordsRequestEntry entry = carriedOver;
+        carriedOver = null;
+        if (entry == null) {
+            TagEvent first = queue.poll(100L, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                return batch;
+            }
+            entry = toEntry(first);
+        }
+
+        long deadline = System.currentTimeMillis() + lingerMillis;
+        while (true) {
+            int entryBytes = entry.getData().remaining() + entry.getPartitionKey().length();
+            if (!batch.isEmpty() && batchBytes + entryBytes > MAX_BYTES_PER_REQUEST) {
+                carriedOver = entry;
+                break;
+            }
+            batch.add(entry);
+            batchBytes += entryBytes;
+            if (batch.size() >= MAX_RECORDS_PER_REQUEST) {
+                break;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            TagEvent next = (remaining > 0 && !closed) ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+            if (next == null) {
+                break;
+            }
+            entry = toEntry(next);
+        }
+        return batch;
+    }
+
+    private PutRecordsRequestEntry toEntry(TagEvent tagEvent) {
+        outputStream.reset();
+        try {
+            tagEvents.write(tagEvent.userSessionId, tagEvent.userId, tagEvent.tag, tagEvent.expiresMillis);
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+
+        return new PutRecordsRequestEntry()
+                .withPartitionKey(tagEvent.userSessionId)
+                .withData(ByteBuffer.wrap(outputStream.toByteArray()));
+    }
+
+    private void submit(final List<PutRecordsRequestEntry> batch) throws InterruptedException {
+        inFlightBatches.acquire();
+        try {
+            senders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        send(batch);
+                    } finally {
+                        inFlightBatches.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlightBatches.release();
+            throw e;
+        }
+    }
+
+    /** Put a batch of records, retrying those the stream rejects. */
+    private void send(List<PutRecordsRequestEntry> batch) {
+        List<PutRecordsRequestEntry> pending = batch;
+        for (int i = 0; i < NUM_RETRIES && !pending.isEmpty(); i++) {
+            if (i > 0) {
+                backoff(i);
+            }
+            long start = System.nanoTime();
+            try {
+                PutRecordsResult result = kinesisClient.putRecords(
+                        new PutRecordsRequest().withStreamName(streamName).withRecords(pending));
+                int failedRecordCount = (result.getFailedRecordCount() != null) ? result.getFailedRecordCount() : 0;
+                metrics.recordTagSend(System.nanoTime() - start, failedRecordCount);
+                if (failedRecordCount == 0) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Successfully put " + pending.size() + " tag events");
+                    }
+                    return;
+                }
+
+                // Results are in the same order as the request's records
+                List<PutRecordsRequestEntry> failed = new ArrayList<PutRecordsRequestEntry>(failedRecordCount);
+                List<PutRecordsResultEntry> results = result.getRecords();
+                for (int r = 0; r < results.size(); r++) {
+                    if (results.get(r).getErrorCode() != null) {
+                        failed.add(pending.get(r));
+                    }
+                }
+                LOG.info("Retrying " + failed.size() + " of " + pending.size() + " tag events - attempt " + (i + 1)
+                        + " of " + NUM_RETRIES);
+                pending = failed;
+            } catch (AmazonClientException e) {
+                metrics.recordTagSend(System.nanoTime() - start, pending.size());
+                LOG.warn("Caught exception putting " + pending.size() + " tag events - attempt " + (i + 1) + " of "
+                        + NUM_RETRIES, e);
+            }
+        }
+        if (!pending.isEmpty()) {
+            LOG.error("Couldn't put " + pending.size() + " tag events. Dropping them.");
+        }
+    }
+
+    private static void backoff(int attempt) {
+        // Exponential backoff with jitter
+        long ceiling = BACKOFF_TIME_IN_MILLIS << Math.min(attempt, 10);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1));
+        } catch (InterruptedException e) {
+            LOG.debug("Interrupted sleep", e);
+        }
+    }
+
+    private static final class TagEvent {
+        final String userSessionId;
+        final String userId;
+        final String tag;
+        final long expiresMillis;
+
+        TagEvent(String userSessionId, String userId, String tag, long expiresMillis) {
+            this.userSessionId = userSessionId;
+            this.userId = userId;
+            this.tag = tag;
+            this.expiresMillis = expiresMillis;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import static com.hemi.EMAAgent.AGENT_NAME;
+
+/**
+ * Serialization of the userTag events shared by the {@link TagSink} implementations.  Each instance writes to
+ * one output stream through one generator, whose buffers are reused for every event, so an instance must only
+ * be used by one thread at a time.
+ */
+public final class TagEvents {
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final OutputStream outputStream;
+    private JsonGenerator jsonGenerator;
+
+    public TagEvents(OutputStream outputStream) {
+        this.outputStream = outputStream;
+        try {
+            this.jsonGenerator = createGenerator(outputStream);
+        } catch (IOException e) {
+            // Creating a generator does no I/O
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Write a userTag event to the stream as a JSON object, without flushing or closing the stream. */
+    public void write(String userSessionId, String userId, String tag, long expiresMillis) throws IOException {
+        try {
+            jsonGenerator.writeStartObject();
+            jsonGenerator.writeStringField("eventName", "userTag");
+            jsonGenerator.writeStringField("eventSource", AGENT_NAME);
+            if (userId != null) {
+                jsonGenerator.writeStringField("userId", userId);
+            }
+            jsonGenerator.writeStringField("userSessionId", userSessionId);
+            jsonGenerator.writeStringField("tag", tag);
+            jsonGenerator.writeStringField("expires", Instant.ofEpochMilli(expiresMillis).toString());
+            jsonGenerator.writeEndObject();
+            jsonGenerator.flush();
+        } catch (IOException e) {
+            // The generator may have been left part way through the event, so the next one starts afresh
+            jsonGenerator = createGenerator(outputStream);
+            throw e;
+        }
+    }
+
+    // Events follow one another with nothing in between, and flushing the generator leaves the stream unflushed
+    private static JsonGenerator createGenerator(OutputStream outputStream) throws IOException {
+        JsonGenerator jsonGenerator = jsonFactory.createGenerator(outputStream);
+        jsonGenerator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        jsonGenerator.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+        jsonGenerator.setRootValueSeparator(null);
+        return jsonGenerator;
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi;
+
+/**
+ * Where the agent sends the userTag events it produces.
+ */
+public interface TagSink {
+    /**
+     * Send a userTag event.  May block while the sink is backed up.
+     *
+     * @param expiresMillis when the tag stops applying; a time in the past withdraws the tag
+     */
+    void emitTag(String userSessionId, String userId, String tag, long expiresMillis);
+
+    /** Send everything emitted so far and release the sink's resources. */
+    void close();
+}
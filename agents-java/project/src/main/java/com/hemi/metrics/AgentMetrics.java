@@ -0,0 +1,258 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.hemi.user.UserProfiles;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The agent's metrics: per-shard record processing, user profile counts and tag emission.  They are exposed as
+ * MBeans in the com.hemi domain and, when an HTTP port is configured, as plain text at /metrics, by default on the
+ * loopback interface only.
+ */
+public class AgentMetrics implements AgentMetricsMBean {
+    private static final Log LOG = LogFactory.getLog(AgentMetrics.class);
+
+    private static final String JMX_DOMAIN = "com.hemi";
+    private static final long REPORTING_INTERVAL_MILLIS = Long.getLong("ema.metrics.intervalMillis", 10000L);
+
+    private final ConcurrentMap<String, ShardMetrics> shards = new ConcurrentHashMap<String, ShardMetrics>();
+
+    private final LongAdder tagsEmitted = new LongAdder();
+    private final LongAdder tagSendFailures = new LongAdder();
+    private final LatencyHistogram tagEmitLatency = new LatencyHistogram();
+    private final LatencyHistogram tagSendLatency = new LatencyHistogram();
+
+    // Updated at each reporting interval
+    private long rolledTagsEmitted = 0L;
+    private volatile double tagsPerSecond = 0.0;
+
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    private final ScheduledExecutorService reporter;
+    private HttpServer httpServer = null;
+
+    public AgentMetrics() {
+        register(this, "Agent", null);
+
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "AgentMetrics-reporter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                roll();
+            }
+        }, REPORTING_INTERVAL_MILLIS, REPORTING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** The metrics of a shard, created and registered with JMX on first use. */
+    public ShardMetrics forShard(String shardId) {
+        ShardMetrics shardMetrics = shards.get(shardId);
+        if (shardMetrics == null) {
+            ShardMetrics created = new ShardMetrics(shardId);
+            shardMetrics = shards.putIfAbsent(shardId, created);
+            if (shardMetrics == null) {
+                shardMetrics = created;
+                register(shardMetrics, "Shard", shardId);
+            }
+        }
+        return shardMetrics;
+    }
+
+    /** Forget a shard this worker no longer processes. */
+    public void removeShard(String shardId) {
+        if (shards.remove(shardId) != null) {
+            unregister("Shard", shardId);
+        }
+    }
+
+    /**
+     * @param latencyNanos how long the processing thread spent handing the tag to its sink
+     */
+    public void recordTagEmitted(long latencyNanos) {
+        tagsEmitted.increment();
+        tagEmitLatency.record(latencyNanos);
+    }
+
+    /**
+     * @param latencyNanos how long a request putting a batch of tags took
+     */
+    public void recordTagSend(long latencyNanos, int failedTags) {
+        tagSendLatency.record(latencyNanos);
+        tagSendFailures.add(failedTags);
+    }
+
+    /**
+     * Serve the metrics as text at http://address:port/metrics.
+     *
+     * @param address host name or address of the interface to listen on; null for the loopback interface
+     */
+    public void startHttpServer(String address, int port) throws IOException {
+        InetAddress bindAddress = (address != null) ? InetAddress.getByName(address) : InetAddress.getLoopbackAddress();
+        httpServer = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        httpServer.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream responseBody = exchange.getResponseBody();
+                responseBody.write(body);
+                responseBody.close();
+            }
+        });
+        httpServer.start();
+        LOG.info("Serving metrics on " + bindAddress.getHostAddress() + ":" + port);
+    }
+
+    public void close() {
+        reporter.shutdown();
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+    }
+
+    /** The metrics, one "name{labels} value" line each. */
+    public String toText() {
+        StringBuilder text = new StringBuilder(4096);
+        for (ShardMetrics shard : shards.values()) {
+            String labels = "{shard=\"" + shard.getShardId() + "\"}";
+            line(text, "ema_shard_records_total", labels, shard.getRecords());
+            line(text, "ema_shard_processed_events_total", labels, shard.getProcessedEvents());
+            line(text, "ema_shard_ignored_events_total", labels, shard.getIgnoredEvents());
+            line(text, "ema_shard_late_events_total", labels, shard.getLateEvents());
+            line(text, "ema_shard_future_events_total", labels, shard.getFutureEvents());
+            line(text, "ema_shard_records_per_second", labels, shard.getRecordsPerSecond());
+            line(text, "ema_shard_retries_total", labels, shard.getRetries());
+            line(text, "ema_shard_skipped_records_total", labels, shard.getSkippedRecords());
+            line(text, "ema_shard_millis_behind_latest", labels, shard.getMillisBehindLatest());
+            line(text, "ema_shard_checkpoints_total", labels, shard.getCheckpoints());
+            line(text, "ema_shard_checkpoint_failures_total", labels, shard.getCheckpointFailures());
+            line(text, "ema_shard_last_checkpoint_latency_nanos", labels, shard.getLastCheckpointLatencyNanos());
+            line(text, "ema_shard_records_since_checkpoint", labels, shard.getRecordsSinceCheckpoint());
+            line(text, "ema_shard_millis_since_checkpoint", labels, shard.getMillisSinceCheckpoint());
+            line(text, "ema_shard_processing_latency_p50_nanos", labels, shard.getProcessingLatencyP50Nanos());
+            line(text, "ema_shard_processing_latency_p99_nanos", labels, shard.getProcessingLatencyP99Nanos());
+            line(text, "ema_shard_processing_latency_p999_nanos", labels, shard.getProcessingLatencyP999Nanos());
+        }
+        line(text, "ema_profiles_partitions", "", getProfilePartitions());
+        line(text, "ema_profiles_authenticated", "", getAuthenticatedProfiles());
+        line(text, "ema_profiles_unauthenticated", "", getUnauthenticatedProfiles());
+        line(text, "ema_profiles_compact_sessions", "", getCompactSessions());
+        line(text, "ema_profiles_authenticated_sessions", "", getAuthenticatedSessions());
+        line(text, "ema_profiles_session_merges_total", "", getSessionMerges());
+        line(text, "ema_profiles_evictions_total", "", getProfileEvictions());
+        line(text, "ema_profiles_sketch_promotions_total", "", getSketchPromotions());
+        line(text, "ema_profiles_sketch_bytes", "", getSessionSketchBytes());
+        line(text, "ema_tags_emitted_total", "", getTagsEmitted());
+        line(text, "ema_tags_per_second", "", getTagsPerSecond());
+        line(text, "ema_tag_emit_latency_p50_nanos", "", getTagEmitLatencyP50Nanos());
+        line(text, "ema_tag_emit_latency_p99_nanos", "", getTagEmitLatencyP99Nanos());
+        line(text, "ema_tag_send_latency_p50_nanos", "", getTagSendLatencyP50Nanos());
+        line(text, "ema_tag_send_latency_p99_nanos", "", getTagSendLatencyP99Nanos());
+        line(text, "ema_tag_send_failures_total", "", getTagSendFailures());
+        return text.toString();
+    }
+
+    private static void line(StringBuilder text, String name, String labels, Object value) {
+        text.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private synchronized void roll() {
+        try {
+            for (ShardMetrics shard : shards.values()) {
+                shard.roll(REPORTING_INTERVAL_MILLIS);
+            }
+            long emitted = tagsEmitted.sum();
+            tagsPerSecond = (emitted - rolledTagsEmitted) * 1000.0 / REPORTING_INTERVAL_MILLIS;
+            rolledTagsEmitted = emitted;
+            tagEmitLatency.roll();
+            tagSendLatency.roll();
+        } catch (Throwable t) {
+            // Keep the scheduled report alive whatever happens
+            LOG.error("Couldn't roll metrics", t);
+        }
+    }
+
+    private void register(Object mBean, String type, String shardId) {
+        try {
+            ObjectName name = objectName(type, shardId);
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(mBean, name);
+        } catch (JMException e) {
+            LOG.warn("Couldn't register " + type + " metrics MBean" + ((shardId != null) ? " of " + shardId : ""), e);
+        }
+    }
+
+    private void unregister(String type, String shardId) {
+        try {
+            mBeanServer.unregisterMBean(objectName(type, shardId));
+        } catch (JMException e) {
+            LOG.debug("Couldn't unregister " + type + " metrics MBean"
+                    + ((shardId != null) ? " of " + shardId : ""), e);
+        }
+    }
+
+    // The name of the agent's MBean, or of a shard's when given its id
+    private static ObjectName objectName(String type, String shardId) throws MalformedObjectNameException {
+        Hashtable<String, String> properties = new Hashtable<String, String>();
+        properties.put("type", type);
+        if (shardId != null) {
+            properties.put("name", ObjectName.quote(shardId));
+        }
+        return new ObjectName(JMX_DOMAIN, properties);
+    }
+
+    @Override public int getProfilePartitions() { return UserProfiles.getPartitionCount(); }
+    @Override public int getAuthenticatedProfiles() { return UserProfiles.getAuthenticatedUserCount(); }
+    @Override public int getUnauthenticatedProfiles() { return UserProfiles.getUnauthenticatedUserCount(); }
+    @Override public int getCompactSessions() { return UserProfiles.getCompactSessionCount(); }
+    @Override public int getAuthenticatedSessions() { return UserProfiles.getAuthenticatedSessionCount(); }
+    @Override public long getSessionMerges() { return UserProfiles.getSessionMergeCount(); }
+    @Override public long getProfileEvictions() { return UserProfiles.getEvictionCount(); }
+    @Override public long getSketchPromotions() { return UserProfiles.getSketchPromotionCount(); }
+    @Override public long getSessionSketchBytes() { return UserProfiles.getSessionSketchBytes(); }
+    @Override public long getTagsEmitted() { return tagsEmitted.sum(); }
+    @Override public double getTagsPerSecond() { return this.tagsPerSecond; }
+    @Override public long getTagEmitLatencyP50Nanos() { return tagEmitLatency.getPercentile(50.0); }
+    @Override public long getTagEmitLatencyP99Nanos() { return tagEmitLatency.getPercentile(99.0); }
+    @Override public long getTagSendLatencyP50Nanos() { return tagSendLatency.getPercentile(50.0); }
+    @Override public long getTagSendLatencyP99Nanos() { return tagSendLatency.getPercentile(99.0); }
+    @Override public long getTagSendFailures() { return tagSendFailures.sum(); }
+}
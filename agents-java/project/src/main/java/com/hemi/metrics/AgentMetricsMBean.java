@@ -0,0 +1,30 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.metrics;
+
+/**
+ * JMX view of the agent as a whole: user profiles and tag emission.  Rates and latencies cover the last
+ * reporting interval.
+ */
+public interface AgentMetricsMBean {
+    int getProfilePartitions();
+    int getAuthenticatedProfiles();
+    int getUnauthenticatedProfiles();
+    int getCompactSessions();
+    int getAuthenticatedSessions();
+    long getSessionMerges();
+    long getProfileEvictions();
+    long getSketchPromotions();
+    long getSessionSketchBytes();
+    long getTagsEmitted();
+    double getTagsPerSecond();
+    long getTagEmitLatencyP50Nanos();
+    long getTagEmitLatencyP99Nanos();
+    long getTagSendLatencyP50Nanos();
+    long getTagSendLatencyP99Nanos();
+    long getTagSendFailures();
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds.  Values are counted in log-linear buckets, eight per
+ * power of two, so recording is a single atomic increment and percentiles are accurate to within 12.5%.
+ *
+ * Percentiles describe the values recorded between the two most recent calls to {@link #roll()}, which
+ * {@link AgentMetrics} makes at each reporting interval.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    // Guarded by this
+    private final long[] rolledCounts = new long[BUCKETS];
+    private final long[] intervalCounts = new long[BUCKETS];
+    private long intervalTotal = 0L;
+
+    public void record(long nanos) {
+        counts.incrementAndGet(indexOf(Math.max(0L, nanos)));
+    }
+
+    /** Start a new reporting interval. */
+    public synchronized void roll() {
+        intervalTotal = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            intervalCounts[i] = count - rolledCounts[i];
+            rolledCounts[i] = count;
+            intervalTotal += intervalCounts[i];
+        }
+    }
+
+    /** @return the number of values recorded in the last interval */
+    public synchronized long getIntervalCount() {
+        return intervalTotal;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return an upper bound on the given percentile of the values recorded in the last interval, or 0 if none
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (intervalTotal == 0L) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(intervalTotal * percentile / 100.0);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += intervalCounts[i];
+            if (seen >= Math.max(1L, rank)) {
+                return (i + 1 < BUCKETS) ? lowerBoundOf(i + 1) - 1 : Long.MAX_VALUE;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowerBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKETS - 1 + SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << (magnitude - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the record processing of one shard.  Updates are uncontended adds, so they are cheap enough to
+ * make for every record.
+ */
+public class ShardMetrics implements ShardMetricsMBean {
+    private final String shardId;
+
+    private final LongAdder processedEvents = new LongAdder();
+    private final LongAdder ignoredEvents = new LongAdder();
+    private final LongAdder lateEvents = new LongAdder();
+    private final LongAdder futureEvents = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder skippedRecords = new LongAdder();
+    private final LatencyHistogram processingLatency = new LatencyHistogram();
+    private volatile long millisBehindLatest = 0L;
+
+    // How far the shard's checkpoint trails its processing
+    private final LongAdder checkpoints = new LongAdder();
+    private final LongAdder checkpointFailures = new LongAdder();
+    private volatile long lastCheckpointLatencyNanos = 0L;
+    private volatile long checkpointedRecords = 0L;
+    private volatile long checkpointMillis = System.currentTimeMillis();
+
+    // Updated at each reporting interval
+    private long rolledRecords = 0L;
+    private volatile double recordsPerSecond = 0.0;
+
+    ShardMetrics(String shardId) {
+        this.shardId = shardId;
+    }
+
+    public void recordProcessed(long latencyNanos) {
+        processedEvents.increment();
+        processingLatency.record(latencyNanos);
+    }
+
+    public void recordIgnored(long latencyNanos) {
+        ignoredEvents.increment();
+        processingLatency.record(latencyNanos);
+    }
+
+    public void recordLate(long latencyNanos) {
+        lateEvents.increment();
+        processingLatency.record(latencyNanos);
+    }
+
+    /** Count an event timestamped too far ahead, whose time was clamped; it is also counted as it is handled. */
+    public void recordFuture() {
+        futureEvents.increment();
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    public void recordSkipped() {
+        skippedRecords.increment();
+    }
+
+    public void setMillisBehindLatest(long millisBehindLatest) {
+        this.millisBehindLatest = millisBehindLatest;
+    }
+
+    /**
+     * @param records the number of records this shard had processed when the checkpointed one was
+     */
+    public void recordCheckpoint(long records, long latencyNanos) {
+        checkpoints.increment();
+        lastCheckpointLatencyNanos = latencyNanos;
+        checkpointedRecords = records;
+        checkpointMillis = System.currentTimeMillis();
+    }
+
+    public void recordCheckpointFailure() {
+        checkpointFailures.increment();
+    }
+
+    synchronized void roll(long intervalMillis) {
+        long records = getRecords();
+        recordsPerSecond = (records - rolledRecords) * 1000.0 / Math.max(1L, intervalMillis);
+        rolledRecords = records;
+        processingLatency.roll();
+    }
+
+    @Override public String getShardId() { return this.shardId; }
+    @Override public long getRecords() {
+        return processedEvents.sum() + ignoredEvents.sum() + lateEvents.sum() + skippedRecords.sum();
+    }
+    @Override public long getProcessedEvents() { return processedEvents.sum(); }
+    @Override public long getIgnoredEvents() { return ignoredEvents.sum(); }
+    @Override public long getLateEvents() { return lateEvents.sum(); }
+    @Override public long getFutureEvents() { return futureEvents.sum(); }
+    @Override public double getRecordsPerSecond() { return this.recordsPerSecond; }
+    @Override public long getRetries() { return retries.sum(); }
+    @Override public long getSkippedRecords() { return skippedRecords.sum(); }
+    @Override public long getMillisBehindLatest() { return this.millisBehindLatest; }
+    @Override public long getCheckpoints() { return checkpoints.sum(); }
+    @Override public long getCheckpointFailures() { return checkpointFailures.sum(); }
+    @Override public long getLastCheckpointLatencyNanos() { return this.lastCheckpointLatencyNanos; }
+    @Override public long getRecordsSinceCheckpoint() { return Math.max(0L, getRecords() - this.checkpointedRecords); }
+    @Override public long getMillisSinceCheckpoint() { return System.currentTimeMillis() - this.checkpointMillis; }
+    @Override public long getProcessingLatencyP50Nanos() { return processingLatency.getPercentile(50.0); }
+    @Override public long getProcessingLatencyP99Nanos() { return processingLatency.getPercentile(99.0); }
+    @Override public long getProcessingLatencyP999Nanos() { return processingLatency.getPercentile(99.9); }
+}
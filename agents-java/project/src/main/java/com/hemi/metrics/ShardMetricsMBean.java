@@ -0,0 +1,31 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.metrics;
+
+/**
+ * JMX view of the record processing of one shard.  Rates and latencies cover the last reporting interval.
+ */
+public interface ShardMetricsMBean {
+    String getShardId();
+    long getRecords();
+    long getProcessedEvents();
+    long getIgnoredEvents();
+    long getLateEvents();
+    long getFutureEvents();
+    double getRecordsPerSecond();
+    long getRetries();
+    long getSkippedRecords();
+    long getMillisBehindLatest();
+    long getCheckpoints();
+    long getCheckpointFailures();
+    long getLastCheckpointLatencyNanos();
+    long getRecordsSinceCheckpoint();
+    long getMillisSinceCheckpoint();
+    long getProcessingLatencyP50Nanos();
+    long getProcessingLatencyP99Nanos();
+    long getProcessingLatencyP999Nanos();
+}
@@ -0,0 +1,306 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.user;
+
+/**
+ * Visit windows of unauthenticated sessions whose ids are UUIDs, kept in primitive arrays instead of one
+ * {@link UserProfile} per session.  A UUID is stored as two longs and its state as one more, packing the
+ * epoch interval index of the last visit in the high half and the visit bitmask in the low half.  The store
+ * is only used while the {@link VisitWindows} need a single resolution level, of at most MAX_WINDOW_BITS.  With a
+ * flag marking it for the next snapshot, an entry costs about 25 bytes plus the free slots of the open-addressing
+ * table.
+ *
+ * The table is split into segments which are not synchronized here: the caller must hold the lock it
+ * associates with a segment.  {@link UserProfiles} uses its session lock stripes, so that a session moving
+ * from this store to an authenticated profile is atomic with the visits recorded against it.
+ */
+class CompactSessionStore {
+    private static final int INITIAL_SEGMENT_SLOTS = 16;
+
+    static final int MAX_WINDOW_BITS = 32;
+
+    private final Segment[] segments;
+
+    CompactSessionStore(int segmentCount) {
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(INITIAL_SEGMENT_SLOTS);
+        }
+    }
+
+    /** @return true if the store can hold the visits of the windows configured */
+    static boolean fits() {
+        return VisitWindows.levelCount() == 1 && VisitWindows.levelBits(0) <= MAX_WINDOW_BITS;
+    }
+
+    /**
+     * Record a visit during the given interval, which may be before the session's last.
+     *
+     * @return the frequent visitor status of the session in each window before and after the visit
+     */
+    int recordVisit(int segment, long high, long low, long interval) {
+        Segment s = segments[segment];
+        int slot = s.find(high, low);
+        long state;
+        int wasFrequentWindows = 0;
+        if (slot >= 0) {
+            long lastInterval = intervalOf(s.states[slot]);
+            long window = windowOf(s.states[slot]);
+            wasFrequentWindows = VisitWindows.frequentWindows(window);
+            state = pack(Math.max(lastInterval, interval),
+                    VisitWindows.addVisit(window, lastInterval, interval, VisitWindows.levelBits(0)));
+            s.states[slot] = state;
+            s.modified[slot] = true;
+        } else {
+            state = pack(interval, 1L);
+            s.insert(~slot, high, low, state, true);
+        }
+        return VisitWindows.visitFlags(wasFrequentWindows, VisitWindows.frequentWindows(windowOf(state)));
+    }
+
+    /** @return the packed state of the session, or 0 if it is not in the store */
+    long get(int segment, long high, long low) {
+        Segment s = segments[segment];
+        int slot = s.find(high, low);
+        return (slot >= 0) ? s.states[slot] : 0L;
+    }
+
+    void remove(int segment, long high, long low) {
+        Segment s = segments[segment];
+        int slot = s.find(high, low);
+        if (slot >= 0) {
+            s.delete(slot);
+        }
+    }
+
+    /** Put a session read from a snapshot into the store, replacing any state it has. */
+    void restore(int segment, long high, long low, long state) {
+        Segment s = segments[segment];
+        int slot = s.find(high, low);
+        if (slot >= 0) {
+            s.states[slot] = state;
+            s.modified[slot] = false;
+        } else {
+            s.insert(~slot, high, low, state, false);
+        }
+    }
+
+    /**
+     * Copy the sessions of the segment for a snapshot, and mark them unmodified.
+     *
+     * @param modifiedOnly copy only the sessions visited since they were last copied
+     * @return the high, low and state of each session copied, one after the other
+     */
+    long[] copy(int segment, boolean modifiedOnly) {
+        Segment s = segments[segment];
+        int count = 0;
+        for (int slot = 0; slot < s.states.length; slot++) {
+            if (s.states[slot] != 0L && (s.modified[slot] || !modifiedOnly)) {
+                count++;
+            }
+        }
+        long[] copied = new long[count * 3];
+        int i = 0;
+        for (int slot = 0; slot < s.states.length; slot++) {
+            if (s.states[slot] != 0L && (s.modified[slot] || !modifiedOnly)) {
+                copied[i++] = s.highs[slot];
+                copied[i++] = s.lows[slot];
+                copied[i++] = s.states[slot];
+                s.modified[slot] = false;
+            }
+        }
+        return copied;
+    }
+
+    /** Remove every session of the segment last visited before the given interval. */
+    int evictVisitedBefore(int segment, long cutoffInterval) {
+        Segment s = segments[segment];
+        int evicted = 0;
+        int slot = 0;
+        while (slot < s.states.length) {
+            long state = s.states[slot];
+            if (state != 0L && intervalOf(state) < cutoffInterval) {
+                // Deletion shifts a later entry into this slot, so look at it again
+                s.delete(slot);
+                evicted++;
+            } else {
+                slot++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Count the sessions of the segment by how many intervals ago they were last visited.  Ages beyond the
+     * end of the array are counted in its last element.
+     */
+    void countByAge(int segment, long currentInterval, long[] counts) {
+        Segment s = segments[segment];
+        for (long state : s.states) {
+            if (state != 0L) {
+                long age = Math.max(0L, currentInterval - intervalOf(state));
+                counts[(int) Math.min(age, counts.length - 1)]++;
+            }
+        }
+    }
+
+    /** Number of sessions in the segment. */
+    int size(int segment) {
+        return segments[segment].size;
+    }
+
+    /** Approximate number of sessions in the store; segments are read without their locks. */
+    int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size;
+        }
+        return size;
+    }
+
+    static long pack(long interval, long window) {
+        return (interval << MAX_WINDOW_BITS) | (window & 0xFFFFFFFFL);
+    }
+
+    static long intervalOf(long state) {
+        return state >>> MAX_WINDOW_BITS;
+    }
+
+    static long windowOf(long state) {
+        return state & 0xFFFFFFFFL;
+    }
+
+    /** @return true if the session id is a UUID in canonical 8-4-4-4-12 hex form */
+    static boolean isUuid(String s) {
+        if (s.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = s.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The most significant 64 bits of a UUID that has passed {@link #isUuid(String)}. */
+    static long uuidHigh(String s) {
+        return (parseHex(s, 0, 8) << 32) | (parseHex(s, 9, 13) << 16) | parseHex(s, 14, 18);
+    }
+
+    /** The least significant 64 bits of a UUID that has passed {@link #isUuid(String)}. */
+    static long uuidLow(String s) {
+        return (parseHex(s, 19, 23) << 48) | parseHex(s, 24, 36);
+    }
+
+    private static long parseHex(String s, int from, int to) {
+        long value = 0L;
+        for (int i = from; i < to; i++) {
+            value = (value << 4) | Character.digit(s.charAt(i), 16);
+        }
+        return value;
+    }
+
+    private static int hash(long high, long low) {
+        // MurmurHash3 finalizer; UUIDs are mostly random already, but sequential ones are not
+        long h = high * 31 + low;
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return (int) h;
+    }
+
+    /**
+     * A linear probing table.  A state of 0 marks a free slot; a stored state always has its current
+     * interval's window bit set, so it is never 0.
+     */
+    private static final class Segment {
+        long[] highs;
+        long[] lows;
+        long[] states;
+        boolean[] modified;     // Visited since the slot's session was last copied to a snapshot
+        int size;
+
+        Segment(int slots) {
+            highs = new long[slots];
+            lows = new long[slots];
+            states = new long[slots];
+            modified = new boolean[slots];
+        }
+
+        /** @return the slot holding the key, or the one's complement of the free slot where it belongs */
+        int find(long high, long low) {
+            int mask = states.length - 1;
+            int slot = hash(high, low) & mask;
+            while (states[slot] != 0L) {
+                if (highs[slot] == high && lows[slot] == low) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return ~slot;
+        }
+
+        void insert(int slot, long high, long low, long state, boolean isModified) {
+            highs[slot] = high;
+            lows[slot] = low;
+            states[slot] = state;
+            modified[slot] = isModified;
+            if (++size > (states.length >> 1) + (states.length >> 2)) {
+                resize(states.length << 1);
+            }
+        }
+
+        /** Backward-shift deletion, which keeps probe sequences intact without tombstones. */
+        void delete(int slot) {
+            int mask = states.length - 1;
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (states[next] != 0L) {
+                int home = hash(highs[next], lows[next]) & mask;
+                // Move the entry back into the hole unless its home slot lies cyclically in (hole, next]
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    highs[hole] = highs[next];
+                    lows[hole] = lows[next];
+                    states[hole] = states[next];
+                    modified[hole] = modified[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            states[hole] = 0L;
+            size--;
+        }
+
+        private void resize(int slots) {
+            long[] oldHighs = highs;
+            long[] oldLows = lows;
+            long[] oldStates = states;
+            boolean[] oldModified = modified;
+            highs = new long[slots];
+            lows = new long[slots];
+            states = new long[slots];
+            modified = new boolean[slots];
+            for (int i = 0; i < oldStates.length; i++) {
+                if (oldStates[i] != 0L) {
+                    int slot = ~find(oldHighs[i], oldLows[i]);
+                    highs[slot] = oldHighs[i];
+                    lows[slot] = oldLows[i];
+                    states[slot] = oldStates[i];
+                    modified[slot] = oldModified[i];
+                }
+            }
+        }
+    }
+}
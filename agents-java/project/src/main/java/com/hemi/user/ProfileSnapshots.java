@@ -0,0 +1,453 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.user;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes the profiles held by a partition of {@link UserProfiles} to snapshot files in a local directory, and
+ * restores them from there when the partition's shard is taken on.
+ *
+ * A full snapshot holds every profile, and each delta snapshot after it only the profiles visited since the
+ * snapshot before, and the session sketches of the intervals counted in since then.  Snapshots are written on a
+ * background thread, and a request made while one is still waiting to start shares it.  Restoring memory-maps
+ * the latest full snapshot and its deltas and applies them in order.
+ *
+ * A snapshot holds every visit recorded before it was requested, and perhaps some recorded while it was being
+ * written.  A record processor which checkpoints a sequence number only once the snapshot requested after
+ * processing it is durable can therefore restart from that snapshot without losing visits: the records replayed
+ * after the checkpoint may already be in it, but recording a visit twice in the same interval changes nothing.
+ *
+ * Each snapshot records the sequence number whose checkpoint it was requested for.  When the directory is local
+ * to the worker, the shard may have been processed elsewhere since its snapshots were written here; if the
+ * shard's checkpoint has moved past the sequence number of the latest snapshot, the snapshots are missing the
+ * visits of the records in between and are not restored.
+ *
+ * Deltas do not record evictions, so a profile evicted since the last full snapshot comes back on restore until
+ * the next sweep drops it again.
+ */
+public class ProfileSnapshots {
+    private static final Log LOG = LogFactory.getLog(ProfileSnapshots.class);
+
+    private static final int MAGIC = 0x454d4150;    // "EMAP"
+    private static final short VERSION = 5;
+    private static final String FILE_PREFIX = "profiles-";
+    private static final String FULL_SUFFIX = ".full";
+    private static final String DELTA_SUFFIX = ".delta";
+
+    // Entry kinds
+    private static final byte END = 0;
+    private static final byte UNAUTHENTICATED = 1;
+    private static final byte AUTHENTICATED = 2;
+    private static final byte COMPACT_SESSION = 3;
+    private static final byte SESSION_SKETCH = 4;
+
+    private final File directory;
+    private final UserProfiles userProfiles;
+    private final int fullSnapshotEvery;
+    private final ExecutorService writer;
+
+    // Used only by the writer thread, once restoring is done
+    private long sequence;
+    private int deltasSinceFull = Integer.MAX_VALUE;    // Start with a full snapshot unless one is restored
+    private final Entry entry = new Entry();
+
+    private CompletableFuture<Void> pending = null;     // Requested snapshot which has not started yet
+    private String pendingSequenceNumber = null;        // The latest sequence number it was requested for
+
+    public ProfileSnapshots(File directory, UserProfiles userProfiles) {
+        this(directory, userProfiles, Integer.getInteger("ema.snapshots.fullEvery", 10));
+    }
+
+    /**
+     * @param fullSnapshotEvery how often to write a full snapshot rather than a delta; 1 writes only full ones
+     */
+    public ProfileSnapshots(File directory, final UserProfiles userProfiles, int fullSnapshotEvery) {
+        this.directory = directory;
+        this.userProfiles = userProfiles;
+        this.fullSnapshotEvery = Math.max(1, fullSnapshotEvery);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create snapshot directory " + directory);
+        }
+
+        // Number new snapshots after any already there, so they are never mistaken for older ones
+        List<File> files = snapshotFiles();
+        this.sequence = files.isEmpty() ? 0L : sequenceOf(files.get(files.size() - 1));
+
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ProfileSnapshots-writer-" + userProfiles.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Load the latest snapshot into the partition.  This must be done before any visit is recorded.
+     *
+     * @param checkpointedSequenceNumber the sequence number the shard is checkpointed at, or null to restore the
+     *                                   latest snapshot whatever it was requested for
+     * @return the number of entries restored
+     * @throws IOException if a snapshot cannot be read, or was written with different visit windows
+     */
+    public long restore(String checkpointedSequenceNumber) throws IOException {
+        List<File> files = snapshotFiles();
+        int lastFull = -1;
+        for (int i = 0; i < files.size(); i++) {
+            if (files.get(i).getName().endsWith(FULL_SUFFIX)) {
+                lastFull = i;
+            }
+        }
+        if (lastFull < 0) {
+            LOG.info("No profile snapshot to restore in " + directory);
+            return 0L;
+        }
+
+        File latest = files.get(files.size() - 1);
+        String sequenceNumber = sequenceNumberOf(latest);
+        if (isBehind(sequenceNumber, checkpointedSequenceNumber)) {
+            LOG.warn("Not restoring profile snapshot " + latest + ", taken at " + sequenceNumber
+                    + ": the shard has since been checkpointed at " + checkpointedSequenceNumber);
+            return 0L;
+        }
+
+        long start = System.currentTimeMillis();
+        long restored = 0L;
+        for (int i = lastFull; i < files.size(); i++) {
+            restored += restore(files.get(i));
+        }
+        deltasSinceFull = files.size() - 1 - lastFull;
+        LOG.info("Restored " + restored + " profile entries from " + (files.size() - lastFull) + " snapshot files in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return restored;
+    }
+
+    // Sequence numbers are decimal; anything else, such as the TRIM_HORIZON of a shard never checkpointed, has no
+    // records behind it
+    private static boolean isBehind(String sequenceNumber, String checkpointedSequenceNumber) {
+        if (checkpointedSequenceNumber == null || !isDecimal(checkpointedSequenceNumber)) {
+            return false;
+        }
+        return sequenceNumber == null || !isDecimal(sequenceNumber)
+                || new BigInteger(sequenceNumber).compareTo(new BigInteger(checkpointedSequenceNumber)) < 0;
+    }
+
+    private static boolean isDecimal(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Request a snapshot of every profile as it is now.
+     *
+     * @param sequenceNumber the sequence number the shard is to be checkpointed at once the snapshot is durable,
+     *                       whose records' visits it holds; or null if there is none
+     * @return a future completed once the snapshot is durable, or completed exceptionally if it could not be written
+     */
+    public synchronized CompletableFuture<Void> requestSnapshot(String sequenceNumber) {
+        // A snapshot not yet started holds the visits of the records of every request made before it starts
+        pendingSequenceNumber = sequenceNumber;
+        if (pending == null) {
+            final CompletableFuture<Void> snapshot = new CompletableFuture<Void>();
+            pending = snapshot;
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Visits from here on may miss this snapshot, so later requests need the next one
+                    String sequenceNumber;
+                    synchronized (ProfileSnapshots.this) {
+                        if (pending == snapshot) {
+                            pending = null;
+                        }
+                        sequenceNumber = pendingSequenceNumber;
+                    }
+                    try {
+                        write(sequenceNumber);
+                        snapshot.complete(null);
+                    } catch (Throwable t) {
+                        LOG.error("Couldn't write profile snapshot", t);
+                        // The profiles in the lost delta were marked as written, so only a full snapshot recovers them
+                        deltasSinceFull = Integer.MAX_VALUE;
+                        snapshot.completeExceptionally(t);
+                    }
+                }
+            });
+        }
+        return pending;
+    }
+
+    /** Finish the snapshots requested so far and stop the writer thread. */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while finishing profile snapshots", e);
+        }
+    }
+
+    private void write(String sequenceNumber) throws IOException {
+        boolean full = deltasSinceFull >= fullSnapshotEvery - 1;
+        long next = sequence + 1;
+        File file = new File(directory,
+                String.format("%s%019d%s", FILE_PREFIX, next, full ? FULL_SUFFIX : DELTA_SUFFIX));
+        File temp = new File(directory, file.getName() + ".tmp");
+
+        long start = System.currentTimeMillis();
+        long written = 0L;
+        boolean durable = false;
+        FileOutputStream fileOutputStream = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeBoolean(full);
+            out.writeLong(start);
+            writeString(out, (sequenceNumber != null) ? sequenceNumber : "");
+            writeString(out, VisitWindows.describe());
+
+            for (UserProfile userProfile : userProfiles.unauthenticatedProfiles()) {
+                if (userProfile.copyTo(entry, !full)) {
+                    out.writeByte(UNAUTHENTICATED);
+                    writeString(out, entry.userSessions.get(0));
+                    writeWindow(out, entry);
+                    written++;
+                }
+            }
+            for (UserProfile userProfile : userProfiles.authenticatedProfiles()) {
+                if (userProfile.copyTo(entry, !full)) {
+                    out.writeByte(AUTHENTICATED);
+                    writeString(out, entry.userId);
+                    out.writeInt(entry.userSessions.size());
+                    for (String userSession : entry.userSessions) {
+                        writeString(out, userSession);
+                    }
+                    writeWindow(out, entry);
+                    written++;
+                }
+            }
+            for (int segment = 0; segment < userProfiles.compactSessionSegments(); segment++) {
+                long[] sessions = userProfiles.copyCompactSessions(segment, !full);
+                for (int i = 0; i < sessions.length; i += 3) {
+                    out.writeByte(COMPACT_SESSION);
+                    out.writeLong(sessions[i]);
+                    out.writeLong(sessions[i + 1]);
+                    out.writeLong(sessions[i + 2]);
+                }
+                written += sessions.length / 3;
+            }
+            if (userProfiles.sessionSketch() != null) {
+                out.writeByte(SESSION_SKETCH);
+                userProfiles.sessionSketch().writeTo(out, !full);
+                written++;
+            }
+            out.writeByte(END);
+            out.flush();
+            fileOutputStream.getFD().sync();
+            durable = true;
+        } finally {
+            fileOutputStream.close();
+            if (!durable) {
+                temp.delete();
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        sequence = next;
+
+        if (full) {
+            deltasSinceFull = 0;
+            for (File earlier : snapshotFiles()) {
+                if (sequenceOf(earlier) < next && !earlier.delete()) {
+                    LOG.warn("Couldn't delete superseded profile snapshot " + earlier);
+                }
+            }
+        } else {
+            deltasSinceFull++;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Wrote " + written + " profile entries to " + file + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    private static void writeWindow(DataOutputStream out, Entry entry) throws IOException {
+        out.writeLong(entry.lastVisitMillis);
+        for (long levelVisits : entry.visits) {
+            out.writeLong(levelVisits);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff) {
+            throw new IOException("Id is too long for a profile snapshot: " + s.substring(0, 64) + "...");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private long restore(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Profile snapshot " + file + " is larger than 2GB");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+            readSequenceNumber(buffer, file);
+            String windows = readString(buffer);
+            if (!windows.equals(VisitWindows.describe())) {
+                throw new IOException("Profile snapshot " + file + " was written with different visit windows: "
+                        + windows);
+            }
+
+            List<String> userSessions = new ArrayList<String>();
+            long lastVisitMillis;
+            long restored = 0L;
+            while (true) {
+                byte kind = buffer.get();
+                switch (kind) {
+                    case END:
+                        return restored;
+                    case UNAUTHENTICATED:
+                        String userSessionId = readString(buffer);
+                        lastVisitMillis = buffer.getLong();
+                        userProfiles.restoreUnauthenticated(userSessionId, readVisits(buffer), lastVisitMillis);
+                        break;
+                    case AUTHENTICATED:
+                        String userId = readString(buffer);
+                        userSessions.clear();
+                        for (int i = buffer.getInt(); i > 0; i--) {
+                            userSessions.add(readString(buffer));
+                        }
+                        lastVisitMillis = buffer.getLong();
+                        userProfiles.restoreAuthenticated(userSessions, userId, readVisits(buffer), lastVisitMillis);
+                        break;
+                    case COMPACT_SESSION:
+                        userProfiles.restoreCompactSession(buffer.getLong(), buffer.getLong(), buffer.getLong());
+                        break;
+                    case SESSION_SKETCH:
+                        if (!SessionSketch.readFrom(buffer, userProfiles.sessionSketch())) {
+                            LOG.warn("Skipped session sketch of " + file + ", which doesn't match the one configured");
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unknown entry kind " + kind + " at offset " + (buffer.position() - 1)
+                                + " of profile snapshot " + file);
+                }
+                restored++;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Profile snapshot " + file + " is truncated", e);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /** @return the sequence number the snapshot was requested for, or null if none */
+    private static String sequenceNumberOf(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            return readSequenceNumber(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0L, Math.min(channel.size(), 1 << 16)), file);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Profile snapshot " + file + " is truncated", e);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    // Reads the header up to the visit windows
+    private static String readSequenceNumber(MappedByteBuffer buffer, File file) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+            throw new IOException(file + " is not a profile snapshot");
+        }
+        buffer.get();       // Full or delta, which the file name also tells
+        buffer.getLong();   // Time written
+        String sequenceNumber = readString(buffer);
+        return sequenceNumber.isEmpty() ? null : sequenceNumber;
+    }
+
+    private static long[] readVisits(MappedByteBuffer buffer) {
+        long[] visits = new long[VisitWindows.levelCount()];
+        for (int level = 0; level < visits.length; level++) {
+            visits[level] = buffer.getLong();
+        }
+        return visits;
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** The snapshot files in the directory, oldest first. */
+    private List<File> snapshotFiles() {
+        List<File> files = new ArrayList<File>();
+        File[] listed = directory.listFiles();
+        if (listed != null) {
+            for (File file : listed) {
+                String name = file.getName();
+                if (name.startsWith(FILE_PREFIX) && (name.endsWith(FULL_SUFFIX) || name.endsWith(DELTA_SUFFIX))) {
+                    files.add(file);
+                }
+            }
+        }
+        // Sequence numbers are zero-padded, so names sort in sequence order
+        File[] sorted = files.toArray(new File[files.size()]);
+        Arrays.sort(sorted);
+        return Arrays.asList(sorted);
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(FILE_PREFIX.length(), name.lastIndexOf('.')));
+    }
+
+    /** A profile as copied for a snapshot. */
+    static final class Entry {
+        final List<String> userSessions = new ArrayList<String>();
+        String userId;
+        final long[] visits = new long[VisitWindows.levelCount()];
+        long lastVisitMillis;
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.user;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Approximate visit bitmasks for unauthenticated sessions, in a fixed amount of memory however many sessions
+ * there are.  For each resolution level of the {@link VisitWindows}, a ring of Count-Min sketches holds one
+ * sketch per interval kept, counting the visits of each session during that interval.  A session's estimated
+ * bitmask has a bit set for each interval whose sketch counts any visit by it.
+ *
+ * A Count-Min sketch of width e/epsilon and depth ln(1/delta) overestimates a count by at most epsilon times the
+ * interval's visits, with probability 1 - delta, and never underestimates.  Estimated bitmasks therefore never
+ * miss a visit, but with epsilon above about one over the visits per interval, a session may be credited with
+ * intervals it was not active in.  The memory cap takes precedence over epsilon: the width is halved until the
+ * sketches fit.
+ *
+ * Visits are counted with atomic increments, so sessions are recorded concurrently without locking.  Each ring
+ * has a sketch more than the intervals it keeps, and each sketch is tagged with the interval it counts.  Moving
+ * on to a new interval only moves the ring's head; the sketches of the intervals which fell out of the ring are
+ * cleared ahead of their reuse on a background thread, if one is given, and otherwise by the first visit counted
+ * in their new interval.  A visit still being counted in an interval as it falls out of the ring may be dropped.
+ */
+public class SessionSketch {
+    private static final Log LOG = LogFactory.getLog(SessionSketch.class);
+
+    private static final int MIN_WIDTH = 64;
+
+    private final int depth;
+    private final int width;
+    private final Level[] levels;
+
+    /**
+     * @param epsilon the largest overestimate of a count, as a fraction of the visits in its interval
+     * @param delta the probability of a larger overestimate
+     * @param maxBytes the most memory the sketches may take
+     * @param latenessMillis how far behind the latest visit recorded a visit may be; each ring keeps enough
+     *        intervals beyond its windows' for a session whose latest visit is that late to keep all of its window
+     */
+    public SessionSketch(double epsilon, double delta, long maxBytes, long latenessMillis) {
+        this(epsilon, delta, maxBytes, latenessMillis, null);
+    }
+
+    /**
+     * @param clearer runs the clearing of sketches whose intervals have fallen out of their ring; or null to clear
+     *        each on the thread counting the first visit of its next interval
+     */
+    public SessionSketch(double epsilon, double delta, long maxBytes, long latenessMillis, Executor clearer) {
+        int[] lengths = new int[VisitWindows.levelCount()];
+        int slices = 0;
+        for (int level = 0; level < lengths.length; level++) {
+            long lateIntervals = latenessMillis / VisitWindows.level(level).getMillis() + 1;
+            lengths[level] = (int) Math.min(Long.SIZE, VisitWindows.levelBits(level) + lateIntervals);
+            slices += lengths[level] + 1;
+        }
+
+        depth = Math.max(1, (int) Math.ceil(Math.log(1.0 / delta)));
+        int width = Integer.highestOneBit((int) Math.min(1 << 30, Math.ceil(Math.E / epsilon)));
+        width = (width < Math.E / epsilon) ? Math.min(1 << 30, width << 1) : width;
+        while (width > MIN_WIDTH && (long) slices * depth * width * 4 > maxBytes) {
+            width >>= 1;
+        }
+        this.width = width;
+
+        levels = new Level[VisitWindows.levelCount()];
+        for (int level = 0; level < levels.length; level++) {
+            levels[level] = new Level(VisitWindows.level(level), lengths[level], depth * width, clearer);
+        }
+        LOG.info("Sketching sessions in " + slices + " sketches of depth " + depth + " and width " + width + ", "
+                + (getMemoryBytes() >> 10) + "KB; epsilon " + getEpsilon());
+    }
+
+    /**
+     * Record a visit by a session, and estimate its visit bitmasks afterwards.  Visits older than the intervals
+     * kept are not recorded.
+     *
+     * @param visits receives the estimated bitmask of each level, relative to the session's latest visit
+     * @return the estimated frequent visitor status of the session in each window before and after the visit,
+     *         for {@link VisitWindows#resultOf}
+     */
+    public int recordVisit(String userSessionId, long visitMillis, long[] visits) {
+        long hash = hash(userSessionId);
+        estimate(hash, visits);
+        int wasFrequentWindows = VisitWindows.frequentWindows(visits);
+        for (Level level : levels) {
+            level.add(hash, level.resolution.index(visitMillis));
+        }
+        estimate(hash, visits);
+        return VisitWindows.visitFlags(wasFrequentWindows, VisitWindows.frequentWindows(visits));
+    }
+
+    /**
+     * Estimate a session's visit bitmasks, without recording a visit.
+     *
+     * @param visits receives the estimated bitmask of each level, relative to the session's latest visit
+     * @return false if no visit by the session is estimated
+     */
+    public boolean estimate(String userSessionId, long[] visits) {
+        estimate(hash(userSessionId), visits);
+        for (long levelVisits : visits) {
+            if (levelVisits != 0L) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the start of the latest interval in which a visit by the session is estimated, at the finest level
+     *         with one, or Long.MIN_VALUE if there is none; the time a profile continuing the session's bitmasks
+     *         is at
+     */
+    public long latestVisitMillis(String userSessionId) {
+        long hash = hash(userSessionId);
+        for (Level level : levels) {
+            long head = level.head;
+            for (int age = 0; age < level.length; age++) {
+                if (estimateInterval(level, hash, head - age)) {
+                    return level.resolution.startMillis(head - age);
+                }
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    // Each level's bitmask is read from the whole ring, then shifted so that bit 0 is the latest interval with a
+    // visit, as a UserProfile's bitmask is relative to its latest visit
+    private void estimate(long hash, long[] visits) {
+        for (int i = 0; i < levels.length; i++) {
+            Level level = levels[i];
+            long head = level.head;
+            long bits = 0L;
+            for (int age = 0; age < level.length; age++) {
+                if (estimateInterval(level, hash, head - age)) {
+                    bits |= 1L << age;
+                }
+            }
+            visits[i] = (bits != 0L) ? bits >>> Long.numberOfTrailingZeros(bits) : 0L;
+        }
+    }
+
+    private boolean estimateInterval(Level level, long hash, long interval) {
+        long head = level.head;
+        if (interval > head || interval <= head - level.length) {
+            return false;
+        }
+        Slice slice = level.sliceOf(interval);
+        if (slice.interval != interval) {
+            return false;   // No visit counted in the interval yet
+        }
+        AtomicIntegerArray counts = slice.counts;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counts.get(row * width + ((h1 + row * h2) & (width - 1))));
+        }
+        return estimate > 0;
+    }
+
+    /**
+     * Add the counts of another sketch of the same shape to this one, as when the partitions of two shards merge.
+     * Intervals the other sketch holds which are too old for this one's rings are left out.
+     */
+    void add(SessionSketch other) {
+        if (other.depth != depth || other.width != width) {
+            LOG.warn("Cannot add a sketch of depth " + other.depth + " and width " + other.width + " to one of depth "
+                    + depth + " and width " + width);
+            return;
+        }
+        for (int i = 0; i < levels.length; i++) {
+            Level level = levels[i];
+            Level otherLevel = other.levels[i];
+            long otherHead = otherLevel.head;
+            if (otherHead == Long.MIN_VALUE) {
+                continue;
+            }
+            for (long interval = otherHead - otherLevel.length + 1; interval <= otherHead; interval++) {
+                Slice from = otherLevel.sliceOf(interval);
+                if (from.interval != interval) {
+                    continue;
+                }
+                Slice to = level.claim(interval);
+                if (to == null) {
+                    continue;
+                }
+                for (int j = 0; j < from.counts.length(); j++) {
+                    to.counts.addAndGet(j, from.counts.get(j));
+                }
+                to.modified = true;
+            }
+        }
+    }
+
+    public int getDepth() { return this.depth; }
+    public int getWidth() { return this.width; }
+
+    /** @return the largest overestimate of a count, as a fraction of the visits in its interval, at this width */
+    public double getEpsilon() { return Math.E / width; }
+
+    public long getMemoryBytes() {
+        long slices = 0L;
+        for (Level level : levels) {
+            slices += level.slices.length;
+        }
+        return slices * depth * width * 4;
+    }
+
+    /**
+     * @param modifiedOnly write only the sketches of intervals counted in since they were last written
+     */
+    void writeTo(DataOutputStream out, boolean modifiedOnly) throws IOException {
+        out.writeInt(depth);
+        out.writeInt(width);
+        out.writeInt(levels.length);
+        for (Level level : levels) {
+            out.writeInt(level.length);
+        }
+        for (Level level : levels) {
+            long head = level.head;
+            out.writeLong(head);
+            long[] intervals = level.countedIntervals(head, modifiedOnly);
+            out.writeInt(intervals.length);
+            for (long interval : intervals) {
+                out.writeLong(interval);
+                Slice slice = level.sliceOf(interval);
+                // Holding the slice keeps it from being cleared for a later interval while it is written
+                synchronized (slice) {
+                    boolean current = slice.interval == interval;
+                    slice.modified = false;     // Before the copy, so counts added during it are written next time
+                    for (int i = 0; i < slice.counts.length(); i++) {
+                        out.writeInt(current ? slice.counts.get(i) : 0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read sketches written by {@link #writeTo} into the given sketch, skipping them if there is none or it has a
+     * different shape.  The sketch of each interval read replaces any the sketch already holds for it, so the
+     * sketches of a full snapshot and then of its deltas are read one after the other.
+     *
+     * @return false if the sketches were skipped
+     */
+    static boolean readFrom(ByteBuffer in, SessionSketch sketch) {
+        int writtenDepth = in.getInt();
+        int writtenWidth = in.getInt();
+        int[] writtenLengths = new int[in.getInt()];
+        boolean matches = sketch != null && writtenDepth == sketch.depth && writtenWidth == sketch.width
+                && writtenLengths.length == sketch.levels.length;
+        for (int i = 0; i < writtenLengths.length; i++) {
+            writtenLengths[i] = in.getInt();
+            matches = matches && writtenLengths[i] == sketch.levels[i].length;
+        }
+        for (int i = 0; i < writtenLengths.length; i++) {
+            long head = in.getLong();
+            int intervals = in.getInt();
+            if (!matches) {
+                in.position(in.position() + intervals * (8 + writtenDepth * writtenWidth * 4));
+                continue;
+            }
+            Level level = sketch.levels[i];
+            level.head = Math.max(level.head, head);
+            for (int j = 0; j < intervals; j++) {
+                long interval = in.getLong();
+                Slice slice = level.sliceOf(interval);
+                synchronized (slice) {
+                    slice.interval = interval;
+                    slice.dirty = true;
+                    slice.modified = false;
+                    for (int k = 0; k < slice.counts.length(); k++) {
+                        slice.counts.set(k, in.getInt());
+                    }
+                }
+            }
+        }
+        return matches;
+    }
+
+    // 64-bit FNV-1a; the two halves index the rows of a sketch by double hashing
+    private static long hash(String s) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash | (1L << 32);   // An odd second half visits every column
+    }
+
+    /** The sketch of one interval of a ring. */
+    private static final class Slice {
+        final AtomicIntegerArray counts;
+        volatile long interval = Long.MIN_VALUE;    // Interval counted, set once the counts are clear for it
+        boolean dirty = false;      // Counts may be non-zero; guarded by the slice
+        volatile boolean modified = false;  // Counted in since last written to a snapshot
+
+        Slice(int counters) {
+            this.counts = new AtomicIntegerArray(counters);
+        }
+
+        // The caller holds the slice
+        void clear() {
+            if (dirty) {
+                for (int i = 0; i < counts.length(); i++) {
+                    counts.set(i, 0);
+                }
+                dirty = false;
+            }
+        }
+    }
+
+    /** The ring of sketches of one resolution level. */
+    private final class Level {
+        final VisitWindows.Resolution resolution;
+        final int length;       // Intervals in the ring
+        final Slice[] slices;   // One more than the intervals, so the next interval's is free to clear ahead
+        final Executor clearer;
+        volatile long head = Long.MIN_VALUE;    // Latest interval counted
+
+        private final Runnable clearExpired = new Runnable() {
+            @Override
+            public void run() {
+                clearExpired();
+            }
+        };
+
+        Level(VisitWindows.Resolution resolution, int length, int counters, Executor clearer) {
+            this.resolution = resolution;
+            this.length = length;
+            this.clearer = clearer;
+            this.slices = new Slice[length + 1];
+            for (int i = 0; i < slices.length; i++) {
+                slices[i] = new Slice(counters);
+            }
+        }
+
+        Slice sliceOf(long interval) {
+            return slices[(int) Math.floorMod(interval, (long) slices.length)];
+        }
+
+        void add(long hash, long interval) {
+            Slice slice = claim(interval);
+            if (slice == null) {
+                return;     // Too old to be kept
+            }
+            AtomicIntegerArray counts = slice.counts;
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int row = 0; row < depth; row++) {
+                counts.incrementAndGet(row * width + ((h1 + row * h2) & (width - 1)));
+            }
+            // After counting, so a snapshot which has just copied the counts writes the slice again next time
+            if (!slice.modified) {
+                slice.modified = true;
+            }
+        }
+
+        /**
+         * @return the slice counting the interval, cleared first if it last counted an earlier one; or null if the
+         *         interval is too old to be kept
+         */
+        Slice claim(long interval) {
+            if (interval > head) {
+                advance(interval);
+            }
+            if (interval <= head - length) {
+                return null;
+            }
+            Slice slice = sliceOf(interval);
+            if (slice.interval != interval) {
+                synchronized (slice) {
+                    if (slice.interval > interval) {
+                        return null;    // The ring moved on past the interval meanwhile
+                    }
+                    if (slice.interval < interval) {
+                        slice.clear();  // Unless the clearer got to it first
+                        slice.dirty = true;
+                        slice.interval = interval;
+                    }
+                }
+            }
+            return slice;
+        }
+
+        /**
+         * @return the intervals of the ring ending at the given head which have a slice counting them, and, if
+         *         modifiedOnly, which have been counted in since they were last written
+         */
+        long[] countedIntervals(long head, boolean modifiedOnly) {
+            if (head == Long.MIN_VALUE) {
+                return new long[0];
+            }
+            long[] intervals = new long[length];
+            int counted = 0;
+            for (long interval = head - length + 1; interval <= head; interval++) {
+                Slice slice = sliceOf(interval);
+                if (slice.interval == interval && (slice.modified || !modifiedOnly)) {
+                    intervals[counted++] = interval;
+                }
+            }
+            return Arrays.copyOf(intervals, counted);
+        }
+
+        private synchronized void advance(long interval) {
+            if (interval <= head) {
+                return;
+            }
+            head = interval;
+            if (clearer != null) {
+                clearer.execute(clearExpired);
+            }
+        }
+
+        // Clear the slices of intervals which have fallen out of the ring, so their next intervals find them ready
+        private void clearExpired() {
+            for (Slice slice : slices) {
+                if (slice.interval <= head - length) {
+                    synchronized (slice) {
+                        if (slice.interval <= head - length) {
+                            slice.clear();
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -6,7 +6,6 @@
 
 package com.hemi.user;
 
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 import org.apache.commons.logging.Log;
@@ -15,42 +14,85 @@ import org.apache.commons.logging.LogFactory;
 public class UserProfile {
     private static final Log LOG = LogFactory.getLog(UserProfile.class);
 
-    private final static int FREQUENT_VISITS_MONITORING_INTERVAL_UNIT = Calendar.MINUTE;  // Set it to MONTH for more real conditions
-    private final static int FREQUENT_VISITS_MONITORING_WINDOW = 5;    // last X INTERVAL_UNITs, set it to 12 MONTHs for more real conditions
-    private final static int FREQUENT_VISITOR_SCORE_THRESHOLD = 2;  // >= threshold, set it to 5 for more real conditions
-    private final static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmm");    // Must match INTERVAL_UNIT
-
     // At any point in time, if userId == null then there should be only 1 userSession, i.e. an unauthenticated user
     private String userId = null;
     private Set<String> userSessions = null;
 
-    private Map<String, Boolean> recentVisitsFrequency = null; // Keep a sliding record of last N months
+    // A bitmask of visited intervals for each resolution level of the VisitWindows.  Bit i is set when the user
+    // visited during the interval i intervals before the one holding lastVisitMillis.
+    private final long[] visits;
+    private int frequentWindows = 0;       // Bit w is set while the user is a frequent visitor in window w
 
-    private int recentVisitsFrequencyScore = 0;
-    private boolean isFrequentVisitor = false;
+    private volatile long lastVisitMillis = 0L;  // Latest visit; read without locking by the eviction sweep
+    private boolean evicted = false;
+    private boolean modified = true;   // Changed since it was last written to a snapshot
 
 
-    public UserProfile (String userSessionId, String userId) {
+    public UserProfile (String userSessionId, String userId, long visitMillis) {
         this.userSessions = new HashSet<String>();
         this.userSessions.add(userSessionId);
 
         this.userId = userId;
 
-        recentVisitsFrequency = new HashMap<String, Boolean>(FREQUENT_VISITS_MONITORING_WINDOW);
-        recentVisitsFrequency.put(dateFormat.format(new Date()), Boolean.TRUE);
-        recentVisitsFrequencyScore = 1;
-        isFrequentVisitor = false;
+        lastVisitMillis = visitMillis;
+        visits = new long[VisitWindows.levelCount()];
+        Arrays.fill(visits, 1L);
+    }
+
+    public UserProfile (String userSessionId, String userId) {
+        this(userSessionId, userId, System.currentTimeMillis());
     }
 
     public UserProfile (String userSessionId) {
         this(userSessionId, null);
     }
 
-    public void recordUserVisit(String userSessionId) {
-        recordUserVisit(userSessionId, null);
+    // Continue the visit bitmask of a session held until now in the CompactSessionStore, which is only used
+    // while there is a single level
+    UserProfile (String userSessionId, String userId, long lastVisitInterval, long levelVisits) {
+        this(userSessionId, userId, VisitWindows.level(0).startMillis(lastVisitInterval));
+        this.visits[0] = levelVisits;
+        this.frequentWindows = VisitWindows.frequentWindows(visits);
+    }
+
+    // Continue the estimated visit bitmasks of a session held until now in the SessionSketch
+    UserProfile (String userSessionId, String userId, long visitMillis, long[] visits) {
+        this(userSessionId, userId, visitMillis);
+        System.arraycopy(visits, 0, this.visits, 0, visits.length);
+        this.frequentWindows = VisitWindows.frequentWindows(visits);
+    }
+
+    // Rebuild a profile written to a snapshot
+    UserProfile (Collection<String> userSessions, String userId, long[] visits, long lastVisitMillis) {
+        this.userSessions = new HashSet<String>(userSessions);
+        this.userId = userId;
+        this.lastVisitMillis = lastVisitMillis;
+        this.visits = visits;
+        this.frequentWindows = VisitWindows.frequentWindows(visits);
+        this.modified = false;
+    }
+
+    public int recordUserVisit(String userSessionId) {
+        return recordUserVisit(userSessionId, null);
     }
 
-    synchronized public void recordUserVisit(String userSessionId, String userId) {
+    public int recordUserVisit(String userSessionId, String userId) {
+        return recordUserVisit(userSessionId, userId, System.currentTimeMillis());
+    }
+
+    /**
+     * Record a visit by this user.  Visits may arrive out of order: one in an interval before the last visit's
+     * is counted in that interval, as long as the interval is still kept.
+     *
+     * @param visitMillis when the visit happened
+     * @return the user's frequent visitor status in each window before and after the visit, for
+     *         {@link VisitWindows#resultOf}; or -1 if the profile has been evicted and the visit was not recorded,
+     *         in which case the caller should look the user up again.
+     */
+    synchronized public int recordUserVisit(String userSessionId, String userId, long visitMillis) {
+        if (evicted) {
+            return -1;
+        }
         if (userId != null && this.userId == null) {
             this.userId = userId;
         }
@@ -60,46 +102,107 @@ public class UserProfile {
             }
         }
 
-        LOG.info("recordUserVisit: " + userSessionId + ", " + userId + "; frequencyScore: " + recentVisitsFrequencyScore);
-
-        // First trim the monitoring window if necessary
-        String currentInterval = dateFormat.format(new Date());
-        Calendar newStartInterval = Calendar.getInstance();
-
-        newStartInterval.add(FREQUENT_VISITS_MONITORING_INTERVAL_UNIT, -FREQUENT_VISITS_MONITORING_WINDOW);
-        String newStartIntervalKey = dateFormat.format(newStartInterval.getTime());
-
-        LOG.info("Checking recentVisitsFrequency...");
-        Set<String> intervals = recentVisitsFrequency.keySet();
-        String interval = null;
-        for (Iterator i = intervals.iterator(); i.hasNext(); ) {
-            interval = (String) i.next();
-            LOG.info(interval);
-            if (interval.compareTo(newStartIntervalKey) < 0) {
-                LOG.info(interval + " is outside the monitoring window " + newStartIntervalKey);
-                if (recentVisitsFrequency.get(interval).equals(Boolean.TRUE)) {
-                    recentVisitsFrequencyScore--;
-                }
-                recentVisitsFrequency.remove(interval);
-                LOG.info("Removing " + interval + " AND updating frequency score to: " + recentVisitsFrequencyScore);
+        // Slide the visit bitmasks forward to the visit's intervals, dropping intervals that fall outside of
+        // them, then record this visit
+        VisitWindows.addVisit(visits, lastVisitMillis, visitMillis);
+        lastVisitMillis = Math.max(lastVisitMillis, visitMillis);
+        modified = true;
+
+        int wasFrequentWindows = frequentWindows;
+        frequentWindows = VisitWindows.frequentWindows(visits);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("recordUserVisit: " + userSessionId + ", " + userId + "; frequent in windows: "
+                    + Integer.toBinaryString(frequentWindows));
+            if ((frequentWindows & ~wasFrequentWindows) != 0) {
+                LOG.debug(userSessionId + ", " + userId + " is a frequent visitor!");
             }
         }
+        return VisitWindows.visitFlags(wasFrequentWindows, frequentWindows);
+    }
+
+    /**
+     * Mark this profile as evicted if it has not been visited since the given time.  Once evicted, a profile
+     * no longer records visits, so a visit racing with its removal from {@link UserProfiles} is never lost.
+     */
+    synchronized boolean evictIfIdleSince(long cutoffMillis) {
+        if (lastVisitMillis < cutoffMillis) {
+            evicted = true;
+        }
+        return evicted;
+    }
+
+    synchronized boolean isEvicted() { return this.evicted; }
+
+    synchronized void recordSession(String userSessionId) {
+        if (userSessions.add(userSessionId)) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Drop sessions from this profile, as when another partition takes them over.
+     *
+     * @return the number of sessions left
+     */
+    synchronized int removeSessions(Collection<String> sessions) {
+        if (userSessions.removeAll(sessions)) {
+            modified = true;
+        }
+        return userSessions.size();
+    }
 
-        // Record this visit
-        if (!recentVisitsFrequency.containsKey(currentInterval) || !recentVisitsFrequency.get(currentInterval).equals(Boolean.TRUE)) {
-            recentVisitsFrequency.put(currentInterval, Boolean.TRUE);
-            recentVisitsFrequencyScore++;
-            LOG.info("Updating current visit interval.  Updated frequency score: " + recentVisitsFrequencyScore);
+    /**
+     * Merge another profile of this user's into this one, such as that of a session it has just logged in with.
+     * The other profile is marked evicted first, so a visit racing with the merge looks the user up again and is
+     * recorded here.
+     */
+    void absorb(UserProfile other) {
+        long[] otherVisits;
+        long otherLastVisitMillis;
+        synchronized (other) {
+            if (other.evicted) {
+                return;
+            }
+            other.evicted = true;
+            otherVisits = other.visits.clone();
+            otherLastVisitMillis = other.lastVisitMillis;
         }
+        mergeVisits(otherVisits, otherLastVisitMillis);
+    }
 
-        if (recentVisitsFrequencyScore >= FREQUENT_VISITOR_SCORE_THRESHOLD) {
-            isFrequentVisitor = true;
-            LOG.warn(userSessionId + ", " + userId + " is a frequent visitor!");
-        } else {
-            isFrequentVisitor = false;
+    /**
+     * Merge visit bitmasks held elsewhere for this user into this profile's.  The frequent visitor status is left
+     * as it was, so that the next visit reports any change the merge brought.
+     */
+    synchronized void mergeVisits(long[] otherVisits, long otherLastVisitMillis) {
+        VisitWindows.mergeVisits(visits, lastVisitMillis, otherVisits, otherLastVisitMillis);
+        lastVisitMillis = Math.max(lastVisitMillis, otherLastVisitMillis);
+        modified = true;
+    }
+
+    /**
+     * Copy this profile into a snapshot entry, and mark it unmodified.
+     *
+     * @param modifiedOnly copy the profile only if it changed since it was last copied
+     * @return false if the profile was not copied
+     */
+    synchronized boolean copyTo(ProfileSnapshots.Entry entry, boolean modifiedOnly) {
+        if (evicted || (modifiedOnly && !modified)) {
+            return false;
         }
+        entry.userSessions.clear();
+        entry.userSessions.addAll(userSessions);
+        entry.userId = userId;
+        System.arraycopy(visits, 0, entry.visits, 0, visits.length);
+        entry.lastVisitMillis = lastVisitMillis;
+        modified = false;
+        return true;
     }
 
+    public long getLastVisitMillis() { return this.lastVisitMillis; }
+
     public String getUserId() { return this.userId; }
-    public boolean isFrequentVisitor() { return this.isFrequentVisitor; }
+
+    /** @return true if the user is a frequent visitor in the given window */
+    public boolean isFrequentVisitor(int window) { return ((this.frequentWindows >>> window) & 1) != 0; }
 }
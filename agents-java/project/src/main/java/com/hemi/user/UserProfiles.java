@@ -6,38 +6,760 @@
 
 package com.hemi.user;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The profiles of the users seen on one shard.  Each record processor owns the partition of the shard it
+ * processes, so a worker holds the profiles of its own shards only, and scaling out to more workers spreads the
+ * profiles over them rather than copying them to each.  A partition is handed over with its shard: it is
+ * exported to a snapshot when the lease is given up, and imported by the next owner; when a shard ends, the
+ * partitions of its child shards started on the same worker take its profiles over, each those of the users
+ * whose partition keys hash into its shard.
+ *
+ * Sessions are merged into their user's profile only within a partition.  The stream is partitioned by
+ * userSessionId, so an authenticated user's sessions are spread over shards, and the user has a profile in the
+ * partition of each shard their sessions fall in, counting only the visits of those sessions.  A user who starts
+ * a new session on each visit has their visits split between up to as many profiles as the stream has shards,
+ * and may stay below a window's threshold in each of them while being a frequent visitor overall.  Counting
+ * every session together needs events partitioned by userId, which ema.js does not do; with a single shard, each
+ * user has the one profile.
+ *
+ * Capacities and the sketch's memory cap apply to each partition, not to the worker: a worker holding the
+ * partitions of n shards, with ema.sketch.maxBytes set to m, spends up to n times m on sketches.
+ */
 public class UserProfiles {
-    private static Map<String, UserProfile> authenticatedUsers = new HashMap<String, UserProfile>(10);
-    private static Map<String, UserProfile> unauthenticatedUsers = new HashMap<String, UserProfile>(10);
+    private static final Log LOG = LogFactory.getLog(UserProfiles.class);
+
+    // Number of lock stripes; a power of two so a stripe can be picked by masking the key hash
+    private static final int LOCK_STRIPES = stripeCount(Runtime.getRuntime().availableProcessors() * 16);
+
+    // Eviction settings, overridable with -D system properties.  Profiles idle for longer than both the idle TTL
+    // and the monitoring window are dropped; beyond the capacity, the least recently visited are dropped first.
+    private static final long IDLE_TTL_MILLIS = Long.getLong("ema.profiles.idleTtlMillis", 0L);
+    private static final int UNAUTHENTICATED_CAPACITY =
+            Integer.getInteger("ema.profiles.unauthenticatedCapacity", 1000000);
+    private static final int AUTHENTICATED_CAPACITY = Integer.getInteger("ema.profiles.authenticatedCapacity", 1000000);
+    private static final long SWEEP_INTERVAL_MILLIS = Long.getLong("ema.profiles.sweepIntervalMillis", 10000L);
+
+    // Optionally only estimate the visits of unauthenticated sessions in a SessionSketch, until a session comes
+    // within the candidate margin of a window's threshold and gets a UserProfile.  Each partition has its own
+    // sketch, of up to the memory cap.
+    private static final boolean SKETCH_SESSIONS = Boolean.getBoolean("ema.profiles.sketchSessions");
+    private static final double SKETCH_EPSILON =
+            Double.parseDouble(System.getProperty("ema.sketch.epsilon", "0.00001"));
+    private static final double SKETCH_DELTA = Double.parseDouble(System.getProperty("ema.sketch.delta", "0.01"));
+    private static final long SKETCH_MAX_BYTES = Long.getLong("ema.sketch.maxBytes", 64L * 1024 * 1024);
+    private static final int SKETCH_CANDIDATE_MARGIN = Integer.getInteger("ema.sketch.candidateMargin", 1);
+    // Sketches keep enough extra intervals for the visits the record processors still accept
+    private static final long SKETCH_LATENESS_MILLIS = Long.getLong("ema.events.allowedLatenessMillis", 60000L);
+
+    // Optionally keep unauthenticated sessions with UUID ids in the CompactSessionStore rather than as UserProfiles
+    private static final boolean COMPACT_SESSIONS = Boolean.getBoolean("ema.profiles.compactSessions")
+            && !SKETCH_SESSIONS && CompactSessionStore.fits();
+    private static final int COMPACT_SESSIONS_CAPACITY =
+            Integer.getInteger("ema.profiles.compactSessionsCapacity", 20000000);
+
+    private final ConcurrentMap<String, UserProfile> authenticatedUsers =
+            new ConcurrentHashMap<String, UserProfile>(16);
+    private final ConcurrentMap<String, UserProfile> unauthenticatedUsers =
+            new ConcurrentHashMap<String, UserProfile>(16);
+
+    // The profile of every session an authenticated user has logged in with on this shard, so that an event
+    // carrying only the userSessionId finds the user in one lookup.  A session's anonymous visits are merged into
+    // the user's profile when it is added, so each user's sessions on the shard, like the sets of a union-find,
+    // resolve to the one profile.
+    private final ConcurrentMap<String, UserProfile> authenticatedSessions =
+            new ConcurrentHashMap<String, UserProfile>(16);
+
+    // Every change to unauthenticatedUsers, authenticatedSessions or compactSessions, including the promotion of a
+    // session into authenticatedUsers, happens while holding the stripe lock for its userSessionId.  Visits for
+    // different sessions therefore proceed in parallel, while a session is never seen half-way through a promotion.
+    private final Object[] sessionLocks = new Object[LOCK_STRIPES];
+
+    // Segment i of the compact store is guarded by sessionLocks[i]
+    private final CompactSessionStore compactSessions = COMPACT_SESSIONS ? new CompactSessionStore(LOCK_STRIPES) : null;
+
+    private final SessionSketch sessionSketch = SKETCH_SESSIONS
+            ? new SessionSketch(SKETCH_EPSILON, SKETCH_DELTA, SKETCH_MAX_BYTES, SKETCH_LATENESS_MILLIS, sweeper) : null;
+    private static final ThreadLocal<long[]> sketchedVisits = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[VisitWindows.levelCount()];
+        }
+    };
+
+    private static final LongAdder evictions = new LongAdder();
+    private static final LongAdder sketchPromotions = new LongAdder();
+    private static final LongAdder sessionMerges = new LongAdder();
+
+    // Event time progress of each stream of visits; profiles age by the slowest
+    private final Set<Watermark> watermarks = ConcurrentHashMap.newKeySet();
+
+    // Eviction runs on its own thread, shared by every partition, so the record processing threads never wait on it
+    private final AtomicBoolean sweepPending = new AtomicBoolean(false);
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "UserProfiles-sweeper");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private final ScheduledFuture<?> sweeps;
+
+    // The partitions open in this JVM, for the metrics; and those of shards which have ended, by shard, until their
+    // children have taken their profiles
+    private static final Set<UserProfiles> partitions = ConcurrentHashMap.newKeySet();
+    private static final ConcurrentMap<String, UserProfiles> retired = new ConcurrentHashMap<String, UserProfiles>();
+
+    private final String name;
+    private volatile long retiredMillis = 0L;
+
+    /**
+     * @param name the shard the partition is for, for logging
+     */
+    public UserProfiles(String name) {
+        this.name = name;
+        for (int i = 0; i < sessionLocks.length; i++) {
+            sessionLocks[i] = new Object();
+        }
+        partitions.add(this);
+        sweeps = sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public String getName() { return this.name; }
+
+    /**
+     * Take over the profiles of the given parent shards' partitions, if they ended on this worker, of the users
+     * whose sessions' partition keys hash into this shard.  They are moved rather than copied: when a shard splits,
+     * each child takes its own users, and a parent is closed as soon as its children have taken everything.  An
+     * authenticated user with sessions in both children of a split is copied to each, with the sessions that hash
+     * to it.  The session sketch cannot be split by session, so each child adds all of its parents'.  This must be
+     * done before any visit is recorded.
+     *
+     * @param parentShardIds the shards this one was split or merged from
+     * @param ownsPartitionKey tells whether a partition key hashes into this shard
+     * @return the number of partitions inherited from
+     */
+    public int inherit(Collection<String> parentShardIds, Predicate<String> ownsPartitionKey) {
+        int inherited = 0;
+        for (String parentShardId : parentShardIds) {
+            UserProfiles parent = retired.get(parentShardId);
+            if (parent == null) {
+                continue;
+            }
+            if (parent.isExpired()) {
+                parent.close();
+                continue;
+            }
+            // The children of a split may start at once
+            synchronized (parent) {
+                inherit(parent, ownsPartitionKey);
+                if (parent.isEmpty()) {
+                    LOG.info("Closing partition " + parent.name + ", whose children have taken all of its profiles");
+                    parent.close();
+                }
+            }
+            inherited++;
+        }
+        return inherited;
+    }
+
+    private void inherit(UserProfiles parent, Predicate<String> ownsPartitionKey) {
+        long moved = 0L;
+        ProfileSnapshots.Entry entry = new ProfileSnapshots.Entry();
+        for (Map.Entry<String, UserProfile> unauthenticated : parent.unauthenticatedUsers.entrySet()) {
+            UserProfile userProfile = unauthenticated.getValue();
+            if (ownsPartitionKey.test(unauthenticated.getKey()) && userProfile.copyTo(entry, false)) {
+                restoreUnauthenticated(entry.userSessions.get(0), entry.visits.clone(), entry.lastVisitMillis);
+                parent.unauthenticatedUsers.remove(unauthenticated.getKey(), userProfile);
+                moved++;
+            }
+        }
+        List<String> ownedSessions = new ArrayList<String>();
+        for (UserProfile userProfile : parent.authenticatedUsers.values()) {
+            if (!userProfile.copyTo(entry, false)) {
+                continue;
+            }
+            ownedSessions.clear();
+            for (String userSessionId : entry.userSessions) {
+                if (ownsPartitionKey.test(userSessionId)) {
+                    ownedSessions.add(userSessionId);
+                }
+            }
+            if (ownedSessions.isEmpty()) {
+                continue;
+            }
+            UserProfile inherited = authenticatedUsers.get(entry.userId);
+            if (inherited == null) {
+                restoreAuthenticated(ownedSessions, entry.userId, entry.visits.clone(), entry.lastVisitMillis);
+            } else {
+                // The user visited both parents of a merged shard
+                inherited.mergeVisits(entry.visits, entry.lastVisitMillis);
+                for (String userSessionId : ownedSessions) {
+                    inherited.recordSession(userSessionId);
+                    authenticatedSessions.put(userSessionId, inherited);
+                }
+            }
+            for (String userSessionId : ownedSessions) {
+                parent.authenticatedSessions.remove(userSessionId, userProfile);
+            }
+            if (userProfile.removeSessions(ownedSessions) == 0) {
+                parent.authenticatedUsers.remove(entry.userId, userProfile);
+            }
+            moved++;
+        }
+        for (int segment = 0; segment < parent.compactSessionSegments(); segment++) {
+            long[] sessions = parent.copyCompactSessions(segment, false);
+            for (int i = 0; i < sessions.length; i += 3) {
+                // The store keeps no letter case, so a session id sent in upper case may be taken for another shard's
+                if (ownsPartitionKey.test(new UUID(sessions[i], sessions[i + 1]).toString())) {
+                    restoreCompactSession(sessions[i], sessions[i + 1], sessions[i + 2]);
+                    synchronized (parent.sessionLocks[segment]) {
+                        parent.compactSessions.remove(segment, sessions[i], sessions[i + 1]);
+                    }
+                    moved++;
+                }
+            }
+        }
+        if (sessionSketch != null && parent.sessionSketch != null) {
+            sessionSketch.add(parent.sessionSketch);
+        }
+        LOG.info("Partition " + name + " inherited " + moved + " profiles of " + parent.name);
+    }
+
+    private boolean isEmpty() {
+        return unauthenticatedUsers.isEmpty() && authenticatedUsers.isEmpty()
+                && (compactSessions == null || compactSessions.size() == 0);
+    }
+
+    /**
+     * Keep this partition for the child shards of its shard, which has ended, to inherit.  It is closed once its
+     * children have taken all of its profiles, or else once its profiles would all have gone idle.
+     */
+    public void retire() {
+        retiredMillis = System.currentTimeMillis();
+        retired.put(name, this);
+    }
+
+    private boolean isExpired() {
+        return retiredMillis != 0L && System.currentTimeMillis() - retiredMillis > VisitWindows.durationMillis();
+    }
+
+    /** Stop sweeping this partition and drop it from the metrics; its profiles go with it. */
+    public void close() {
+        sweeps.cancel(false);
+        partitions.remove(this);
+        retired.remove(name, this);
+    }
+
+    /**
+     * Record a visit by a user, identified by session and, once authenticated, by userId.  The userSessionId is
+     * required.
+     *
+     * @return the user's frequent visitor status in each window before and after the visit, for
+     *         {@link VisitWindows#resultOf}
+     */
+    public int recordUserVisit (String userSessionId, String userId) {
+        return recordUserVisit(userSessionId, userId, System.currentTimeMillis());
+    }
+
+    /**
+     * Record a visit by a user at the given time, which may be before visits already recorded.
+     *
+     * @return the user's frequent visitor status in each window before and after the visit, for
+     *         {@link VisitWindows#resultOf}
+     */
+    public int recordUserVisit (String userSessionId, String userId, long visitMillis) {
+        UserProfile sessionUser = authenticatedSessions.get(userSessionId);
+        if (sessionUser == null && userId == null) {
+            int result = -1;
+            if (compactSessions != null && CompactSessionStore.isUuid(userSessionId)) {
+                result = recordCompactSessionVisit(userSessionId, visitMillis);
+            } else if (sessionSketch != null && !unauthenticatedUsers.containsKey(userSessionId)) {
+                result = recordSketchedSessionVisit(userSessionId, visitMillis);
+            }
+            if (result >= 0) {
+                return result;
+            }
+        }
+        while (true) {
+            UserProfile userProfile =
+                    (sessionUser != null && (userId == null || userId.equals(sessionUser.getUserId())))
+                    ? sessionUser : lookup(userSessionId, userId, visitMillis);
+            int result = userProfile.recordUserVisit(userSessionId, userId, visitMillis);
+            if (result >= 0) {
+                return result;
+            }
+            // Lost a race with eviction, or with a merge into the profile of the user the session has logged in
+            // as; clear the stale entry and look again
+            removeEvicted(userSessionId, userId, userProfile);
+            sessionUser = authenticatedSessions.get(userSessionId);
+        }
+    }
+
+    /**
+     * @return the visit result, or -1 if the session has logged in and the visit should be recorded in its user's
+     *         profile
+     */
+    private int recordCompactSessionVisit(String userSessionId, long visitMillis) {
+        int stripe = stripeFor(userSessionId);
+        long interval = VisitWindows.level(0).index(visitMillis);
+        int result;
+        int segmentSize;
+        synchronized (sessionLocks[stripe]) {
+            if (authenticatedSessions.containsKey(userSessionId)) {
+                return -1;
+            }
+            result = compactSessions.recordVisit(stripe, CompactSessionStore.uuidHigh(userSessionId),
+                    CompactSessionStore.uuidLow(userSessionId), interval);
+            segmentSize = compactSessions.size(stripe);
+        }
+        // Segments fill evenly, so one segment's size estimates the whole store's without summing them all
+        requestSweepIfOver(segmentSize * sessionLocks.length, COMPACT_SESSIONS_CAPACITY);
+        return result;
+    }
+
+    /**
+     * @return the visit result, or -1 if the session has a UserProfile, or its user's, and the visit should be
+     *         recorded there
+     */
+    private int recordSketchedSessionVisit(String userSessionId, long visitMillis) {
+        long[] visits = sketchedVisits.get();
+        int result;
+        synchronized (lockFor(userSessionId)) {
+            if (unauthenticatedUsers.containsKey(userSessionId) || authenticatedSessions.containsKey(userSessionId)) {
+                return -1;
+            }
+            result = sessionSketch.recordVisit(userSessionId, visitMillis, visits);
+            if (VisitWindows.candidateWindows(visits, SKETCH_CANDIDATE_MARGIN) == 0) {
+                return result;
+            }
+            // Count the session's visits exactly from now on, starting from the estimate
+            unauthenticatedUsers.put(userSessionId, new UserProfile(userSessionId, null,
+                    Math.max(visitMillis, sessionSketch.latestVisitMillis(userSessionId)), visits));
+        }
+        sketchPromotions.increment();
+        requestSweepIfOver(unauthenticatedUsers.size(), UNAUTHENTICATED_CAPACITY);
+        return result;
+    }
 
-    synchronized public static UserProfile recordUserVisit (String userSessionId, String userId) {
+    private UserProfile lookup(String userSessionId, String userId, long visitMillis) {
         UserProfile userProfile = null;
         if (userId == null) {   // Unauthenticated user
-            if (unauthenticatedUsers.containsKey(userSessionId)) {
-                userProfile = unauthenticatedUsers.get(userSessionId);
-            } else {
-                userProfile = new UserProfile(userSessionId);
-                unauthenticatedUsers.put(userSessionId, userProfile);
+            userProfile = unauthenticatedUsers.get(userSessionId);
+            if (userProfile == null) {
+                synchronized (lockFor(userSessionId)) {
+                    userProfile = unauthenticatedUsers.get(userSessionId);
+                    if (userProfile == null) {
+                        userProfile = authenticatedSessions.get(userSessionId);
+                    }
+                    if (userProfile == null) {
+                        userProfile = new UserProfile(userSessionId, null, visitMillis);
+                        unauthenticatedUsers.put(userSessionId, userProfile);
+                    }
+                }
+                requestSweepIfOver(unauthenticatedUsers.size(), UNAUTHENTICATED_CAPACITY);
             }
         } else {    // Authenticated user
-            if (authenticatedUsers.containsKey(userId)) {
-                userProfile = authenticatedUsers.get(userId);
-            } else {
-                // First check for sessionId in the unauthenticated user pool
-                if (unauthenticatedUsers.containsKey(userSessionId)) {
-                    userProfile = unauthenticatedUsers.get(userSessionId);
-                    unauthenticatedUsers.remove(userSessionId);
+            userProfile = authenticatedUsers.get(userId);
+            if (userProfile == null) {
+                int stripe = stripeFor(userSessionId);
+                synchronized (sessionLocks[stripe]) {
+                    userProfile = authenticatedUsers.get(userId);
+                    if (userProfile == null) {
+                        // First check for sessionId in the unauthenticated user pools.  putIfAbsent settles the
+                        // race with another session of the same user authenticating at the same time.
+                        long compactState = 0L;
+                        if (compactSessions != null && CompactSessionStore.isUuid(userSessionId)) {
+                            compactState = compactSessions.get(stripe, CompactSessionStore.uuidHigh(userSessionId),
+                                    CompactSessionStore.uuidLow(userSessionId));
+                        }
+                        UserProfile promoted = unauthenticatedUsers.get(userSessionId);
+                        long[] sketched = sketchedVisits.get();
+                        UserProfile candidate;
+                        if (promoted != null) {
+                            candidate = promoted;
+                        } else if (compactState != 0L) {
+                            candidate = new UserProfile(userSessionId, userId,
+                                    CompactSessionStore.intervalOf(compactState),
+                                    CompactSessionStore.windowOf(compactState));
+                        } else if (sessionSketch != null && sessionSketch.estimate(userSessionId, sketched)) {
+                            candidate = new UserProfile(userSessionId, userId,
+                                    sessionSketch.latestVisitMillis(userSessionId), sketched);
+                        } else {
+                            candidate = new UserProfile(userSessionId, userId, visitMillis);
+                        }
+                        userProfile = authenticatedUsers.putIfAbsent(userId, candidate);
+                        if (userProfile == null) {
+                            userProfile = candidate;
+                            if (promoted != null) {
+                                unauthenticatedUsers.remove(userSessionId, promoted);
+                            }
+                            if (compactState != 0L) {
+                                compactSessions.remove(stripe, CompactSessionStore.uuidHigh(userSessionId),
+                                        CompactSessionStore.uuidLow(userSessionId));
+                            }
+                            authenticatedSessions.put(userSessionId, userProfile);
+                        }
+                    }
+                }
+                requestSweepIfOver(authenticatedUsers.size(), AUTHENTICATED_CAPACITY);
+            }
+            if (authenticatedSessions.get(userSessionId) != userProfile) {
+                addSession(userSessionId, userProfile);
+            }
+        }
+        return userProfile;
+    }
+
+    /**
+     * Index a session an authenticated user has just logged in with, merging whatever the session visited while
+     * anonymous into the user's profile.
+     */
+    private void addSession(String userSessionId, UserProfile userProfile) {
+        int stripe = stripeFor(userSessionId);
+        synchronized (sessionLocks[stripe]) {
+            if (authenticatedSessions.get(userSessionId) == userProfile) {
+                return;
+            }
+            boolean merged = false;
+            UserProfile anonymous = unauthenticatedUsers.remove(userSessionId);
+            if (anonymous != null) {
+                userProfile.absorb(anonymous);
+                merged = true;
+            } else if (compactSessions != null && CompactSessionStore.isUuid(userSessionId)) {
+                long high = CompactSessionStore.uuidHigh(userSessionId);
+                long low = CompactSessionStore.uuidLow(userSessionId);
+                long compactState = compactSessions.get(stripe, high, low);
+                if (compactState != 0L) {
+                    userProfile.mergeVisits(new long[] { CompactSessionStore.windowOf(compactState) },
+                            VisitWindows.level(0).startMillis(CompactSessionStore.intervalOf(compactState)));
+                    compactSessions.remove(stripe, high, low);
+                    merged = true;
+                }
+            } else if (sessionSketch != null) {
+                long[] sketched = sketchedVisits.get();
+                if (sessionSketch.estimate(userSessionId, sketched)) {
+                    userProfile.mergeVisits(sketched, sessionSketch.latestVisitMillis(userSessionId));
+                    merged = true;
+                }
+            }
+            // A session which has logged in as someone else before now resolves to the latest user
+            authenticatedSessions.put(userSessionId, userProfile);
+            if (merged) {
+                sessionMerges.increment();
+            }
+        }
+    }
+
+    private void removeEvicted(String userSessionId, String userId, UserProfile userProfile) {
+        synchronized (lockFor(userSessionId)) {
+            unauthenticatedUsers.remove(userSessionId, userProfile);
+            authenticatedSessions.remove(userSessionId, userProfile);
+            if (userId != null) {
+                authenticatedUsers.remove(userId, userProfile);
+            }
+        }
+    }
+
+    /**
+     * Age profiles by the watermark from now on, rather than by the wall clock, for as long as it is registered.
+     */
+    public void addWatermark(Watermark watermark) {
+        watermarks.add(watermark);
+    }
+
+    public void removeWatermark(Watermark watermark) {
+        watermarks.remove(watermark);
+    }
+
+    /** The time profiles age by: the slowest watermark which has seen an event, or else the wall clock. */
+    long currentTimeMillis() {
+        long slowest = Long.MAX_VALUE;
+        for (Watermark watermark : watermarks) {
+            long watermarkMillis = watermark.getWatermarkMillis();
+            if (watermarkMillis != Long.MIN_VALUE) {
+                slowest = Math.min(slowest, watermarkMillis);
+            }
+        }
+        return (slowest != Long.MAX_VALUE) ? slowest : System.currentTimeMillis();
+    }
+
+    // Totals over the partitions open in this JVM
+
+    public static int getPartitionCount() { return partitions.size(); }
+
+    public static int getAuthenticatedUserCount() {
+        int count = 0;
+        for (UserProfiles partition : partitions) {
+            count += partition.authenticatedUsers.size();
+        }
+        return count;
+    }
+
+    public static int getUnauthenticatedUserCount() {
+        int count = 0;
+        for (UserProfiles partition : partitions) {
+            count += partition.unauthenticatedUsers.size();
+        }
+        return count;
+    }
+
+    public static int getCompactSessionCount() {
+        int count = 0;
+        for (UserProfiles partition : partitions) {
+            count += (partition.compactSessions != null) ? partition.compactSessions.size() : 0;
+        }
+        return count;
+    }
+
+    public static int getAuthenticatedSessionCount() {
+        int count = 0;
+        for (UserProfiles partition : partitions) {
+            count += partition.authenticatedSessions.size();
+        }
+        return count;
+    }
+
+    public static long getSessionSketchBytes() {
+        long bytes = 0L;
+        for (UserProfiles partition : partitions) {
+            bytes += (partition.sessionSketch != null) ? partition.sessionSketch.getMemoryBytes() : 0L;
+        }
+        return bytes;
+    }
+
+    public static long getEvictionCount() { return evictions.sum(); }
+    public static long getSketchPromotionCount() { return sketchPromotions.sum(); }
+    public static long getSessionMergeCount() { return sessionMerges.sum(); }
+
+    /**
+     * Hand each profile to an action, with the key it is held under: the userId of an authenticated user, or
+     * else the session id.  Sessions held only in the CompactSessionStore or the SessionSketch are skipped.
+     */
+    public void forEachProfile(BiConsumer<String, UserProfile> action) {
+        for (Map.Entry<String, UserProfile> entry : unauthenticatedUsers.entrySet()) {
+            action.accept(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, UserProfile> entry : authenticatedUsers.entrySet()) {
+            action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // Snapshot support for ProfileSnapshots.  Profiles are written while visits continue; each is copied under its
+    // own lock, so a snapshot holds every visit recorded before it began, and perhaps some recorded during it.
+
+    Collection<UserProfile> unauthenticatedProfiles() { return unauthenticatedUsers.values(); }
+    Collection<UserProfile> authenticatedProfiles() { return authenticatedUsers.values(); }
+    SessionSketch sessionSketch() { return sessionSketch; }
+    int compactSessionSegments() { return (compactSessions != null) ? sessionLocks.length : 0; }
+
+    long[] copyCompactSessions(int segment, boolean modifiedOnly) {
+        synchronized (sessionLocks[segment]) {
+            return compactSessions.copy(segment, modifiedOnly);
+        }
+    }
+
+    // Restoring happens before any visit is recorded, so the stores are updated without locking
+
+    void restoreUnauthenticated(String userSessionId, long[] visits, long lastVisitMillis) {
+        if (compactSessions != null && CompactSessionStore.isUuid(userSessionId)) {
+            restoreCompactSession(CompactSessionStore.uuidHigh(userSessionId),
+                    CompactSessionStore.uuidLow(userSessionId),
+                    CompactSessionStore.pack(VisitWindows.level(0).index(lastVisitMillis), visits[0]));
+        } else {
+            unauthenticatedUsers.put(userSessionId, new UserProfile(Collections.singleton(userSessionId), null,
+                    visits, lastVisitMillis));
+        }
+    }
+
+    void restoreAuthenticated(Collection<String> userSessions, String userId, long[] visits,
+                                     long lastVisitMillis) {
+        // The user's sessions were promoted after an earlier snapshot held them as unauthenticated
+        for (String userSessionId : userSessions) {
+            unauthenticatedUsers.remove(userSessionId);
+            if (compactSessions != null && CompactSessionStore.isUuid(userSessionId)) {
+                compactSessions.remove(stripeFor(userSessionId), CompactSessionStore.uuidHigh(userSessionId),
+                        CompactSessionStore.uuidLow(userSessionId));
+            }
+        }
+        UserProfile userProfile = new UserProfile(userSessions, userId, visits, lastVisitMillis);
+        authenticatedUsers.put(userId, userProfile);
+        for (String userSessionId : userSessions) {
+            authenticatedSessions.put(userSessionId, userProfile);
+        }
+    }
+
+    void restoreCompactSession(long high, long low, long state) {
+        // The store keeps no letter case, so a session restored as a profile gets the lower case form of its id
+        String userSessionId = new UUID(high, low).toString();
+        if (compactSessions != null) {
+            compactSessions.restore(stripeFor(userSessionId), high, low, state);
+        } else {
+            // Compact sessions are only written while there is a single level, which the snapshot's windows match
+            unauthenticatedUsers.put(userSessionId, new UserProfile(Collections.singleton(userSessionId), null,
+                    new long[] { CompactSessionStore.windowOf(state) },
+                    VisitWindows.level(0).startMillis(CompactSessionStore.intervalOf(state))));
+        }
+    }
+
+    private void requestSweepIfOver(int size, int capacity) {
+        if (size > capacity && sweepPending.compareAndSet(false, true)) {
+            sweeper.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sweep();
+                }
+            });
+        }
+    }
+
+    private void sweep() {
+        sweepPending.set(false);
+        if (isExpired()) {
+            close();
+            return;
+        }
+        try {
+            long idleCutoff = currentTimeMillis() - Math.max(IDLE_TTL_MILLIS, VisitWindows.durationMillis());
+            int evictedUnauthenticated = sweep(unauthenticatedUsers, UNAUTHENTICATED_CAPACITY, idleCutoff, true);
+            int evictedAuthenticated = sweep(authenticatedUsers, AUTHENTICATED_CAPACITY, idleCutoff, false);
+            sweepAuthenticatedSessions();
+            int evictedCompact = (compactSessions != null) ? sweepCompactSessions(idleCutoff) : 0;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(name + ": evicted " + evictedUnauthenticated + " unauthenticated, " + evictedAuthenticated
+                        + " authenticated and " + evictedCompact + " compact profiles; " + unauthenticatedUsers.size()
+                        + ", " + authenticatedUsers.size() + " and " + getCompactSessionCount() + " remain");
+            }
+        } catch (Throwable t) {
+            // Keep the scheduled sweep alive whatever happens
+            LOG.error("Profile eviction sweep of partition " + name + " failed", t);
+        }
+    }
+
+    private int sweep(ConcurrentMap<String, UserProfile> users, int capacity, long idleCutoff, boolean keyedBySession) {
+        // Over capacity, raise the cutoff so that roughly the least recently visited excess goes too
+        int excess = users.size() - capacity;
+        if (excess > 0) {
+            long[] lastVisits = new long[users.size()];
+            int n = 0;
+            for (UserProfile userProfile : users.values()) {
+                if (n == lastVisits.length) {
+                    break;
+                }
+                lastVisits[n++] = userProfile.getLastVisitMillis();
+            }
+            Arrays.sort(lastVisits, 0, n);
+            if (n > 0) {
+                idleCutoff = Math.max(idleCutoff, lastVisits[Math.min(excess, n - 1)]);
+            }
+        }
+
+        int evicted = 0;
+        for (Iterator<Map.Entry<String, UserProfile>> i = users.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, UserProfile> entry = i.next();
+            UserProfile userProfile = entry.getValue();
+            if (userProfile.getLastVisitMillis() < idleCutoff && userProfile.evictIfIdleSince(idleCutoff)) {
+                if (keyedBySession) {
+                    synchronized (lockFor(entry.getKey())) {
+                        users.remove(entry.getKey(), userProfile);
+                    }
                 } else {
-                    userProfile = new UserProfile(userSessionId, userId);
+                    users.remove(entry.getKey(), userProfile);
                 }
-                authenticatedUsers.put(userId, userProfile);
+                evicted++;
             }
         }
+        evictions.add(evicted);
+        return evicted;
+    }
 
-        userProfile.recordUserVisit(userSessionId, userId);
-        return userProfile;
+    // Drop the sessions of the authenticated users just evicted, and of those merged into another profile
+    private void sweepAuthenticatedSessions() {
+        for (Map.Entry<String, UserProfile> entry : authenticatedSessions.entrySet()) {
+            if (entry.getValue().isEvicted()) {
+                synchronized (lockFor(entry.getKey())) {
+                    authenticatedSessions.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private int sweepCompactSessions(long idleCutoffMillis) {
+        long currentInterval = VisitWindows.level(0).index(currentTimeMillis());
+        long cutoffInterval = VisitWindows.level(0).index(idleCutoffMillis);
+
+        // Over capacity, drop whole intervals of the least recently visited sessions until back under it
+        int excess = compactSessions.size() - COMPACT_SESSIONS_CAPACITY;
+        if (excess > 0) {
+            long[] countsByAge = new long[(int) Math.min(Math.max(1L, currentInterval - cutoffInterval), 65536L) + 1];
+            for (int stripe = 0; stripe < sessionLocks.length; stripe++) {
+                synchronized (sessionLocks[stripe]) {
+                    compactSessions.countByAge(stripe, currentInterval, countsByAge);
+                }
+            }
+            int age = countsByAge.length - 1;
+            long dropped = countsByAge[age];
+            while (dropped < excess && age > 0) {
+                dropped += countsByAge[--age];
+            }
+            cutoffInterval = Math.max(cutoffInterval, currentInterval - age + 1);
+        }
+
+        int evicted = 0;
+        for (int stripe = 0; stripe < sessionLocks.length; stripe++) {
+            synchronized (sessionLocks[stripe]) {
+                evicted += compactSessions.evictVisitedBefore(stripe, cutoffInterval);
+            }
+        }
+        evictions.add(evicted);
+        return evicted;
+    }
+
+    private Object lockFor(String key) {
+        return sessionLocks[stripeFor(key)];
+    }
+
+    private int stripeFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (sessionLocks.length - 1);
+    }
+
+    private static int stripeCount(int minimum) {
+        int n = 1;
+        while (n < minimum) {
+            n <<= 1;
+        }
+        return n;
     }
 }
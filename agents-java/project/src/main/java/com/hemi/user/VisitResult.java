@@ -0,0 +1,35 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.user;
+
+/**
+ * The frequent visitor status of a user in a window after a visit, and whether the visit changed it.
+ */
+public enum VisitResult {
+    INFREQUENT(false),
+    FREQUENT(true),
+    BECAME_FREQUENT(true),
+    STOPPED_BEING_FREQUENT(false);
+
+    private final boolean frequentVisitor;
+
+    VisitResult(boolean frequentVisitor) {
+        this.frequentVisitor = frequentVisitor;
+    }
+
+    public boolean isFrequentVisitor() { return this.frequentVisitor; }
+
+    public boolean isTransition() { return this == BECAME_FREQUENT || this == STOPPED_BEING_FREQUENT; }
+
+    static VisitResult of(boolean wasFrequentVisitor, boolean isFrequentVisitor) {
+        if (isFrequentVisitor) {
+            return wasFrequentVisitor ? FREQUENT : BECAME_FREQUENT;
+        } else {
+            return wasFrequentVisitor ? STOPPED_BEING_FREQUENT : INFREQUENT;
+        }
+    }
+}
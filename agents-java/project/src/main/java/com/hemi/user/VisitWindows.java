@@ -0,0 +1,316 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.user;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The windows over which users are scored for frequent visits, set with the ema.windows property.  Each window
+ * is written [name=]LENGTH UNIT:THRESHOLD, for instance "hourly=60m:10", "30d:5" or "12M:5": a user is a frequent
+ * visitor in the window if they visited during at least THRESHOLD of the last LENGTH minutes (m), hours (h),
+ * days (d) or calendar months (M), counting the one of their latest visit.  Several windows are separated by
+ * commas; the default, "6m:2", is two of the last six minutes.
+ *
+ * A profile keeps one bitmask of visited intervals per resolution in use, minutes, hours, days or months, rather
+ * than one per window, and a visit sets the bit of its minute, hour, day and month in the one pass.  An hour's
+ * bit is thus the roll-up of its minutes' bits, and windows of the same resolution share their bits.  A
+ * profile's size and the cost of a visit therefore depend on the resolutions in use, not on how long the
+ * windows are.
+ */
+public final class VisitWindows {
+    // Windows' frequent visitor flags before and after a visit are packed into one int, so there can be 15
+    public static final int MAX_WINDOWS = 15;
+    private static final int MAX_LENGTH = 63;
+
+    private static final Window[] windows = parse(System.getProperty("ema.windows", "6m:2"));
+    private static final Resolution[] levels;
+    private static final int[] levelBits;       // Intervals kept at each level, enough for its longest window
+    static {
+        List<Resolution> used = new ArrayList<Resolution>();
+        for (Resolution resolution : Resolution.values()) {
+            for (Window window : windows) {
+                if (window.resolution == resolution && !used.contains(resolution)) {
+                    used.add(resolution);
+                }
+            }
+        }
+        levels = used.toArray(new Resolution[used.size()]);
+        levelBits = new int[levels.length];
+        for (Window window : windows) {
+            window.level = used.indexOf(window.resolution);
+            levelBits[window.level] = Math.max(levelBits[window.level], window.length);
+        }
+    }
+
+    private VisitWindows() {
+    }
+
+    /** The length of time a bit of a visit bitmask stands for. */
+    public enum Resolution {
+        MINUTE('m', 60000L),
+        HOUR('h', 3600000L),
+        DAY('d', 86400000L),
+        MONTH('M', 31 * 86400000L) {
+            @Override
+            public long index(long millis) {
+                return monthOfDay(Math.floorDiv(millis, 86400000L));
+            }
+
+            @Override
+            public long startMillis(long index) {
+                return dayOfMonth(index) * 86400000L;
+            }
+        };
+
+        private final char unit;
+        private final long millis;
+
+        Resolution(char unit, long millis) {
+            this.unit = unit;
+            this.millis = millis;
+        }
+
+        /** @return the epoch index of the interval holding the given time */
+        public long index(long millis) {
+            return Math.floorDiv(millis, this.millis);
+        }
+
+        public long startMillis(long index) {
+            return index * millis;
+        }
+
+        /** @return the length of an interval; for months, the longest */
+        public long getMillis() { return this.millis; }
+    }
+
+    /** A window over which users are scored. */
+    public static final class Window {
+        private final String name;
+        private final Resolution resolution;
+        private final int length;
+        private final int threshold;
+        private final long mask;
+        private int level;
+
+        Window(String name, Resolution resolution, int length, int threshold) {
+            this.name = name;
+            this.resolution = resolution;
+            this.length = length;
+            this.threshold = threshold;
+            this.mask = (1L << length) - 1;
+        }
+
+        public String getName() { return this.name; }
+        public Resolution getResolution() { return this.resolution; }
+        public int getLength() { return this.length; }
+        public int getThreshold() { return this.threshold; }
+
+        /** How long a profile must go unvisited before the window no longer holds any of its visits. */
+        public long durationMillis() {
+            return length * resolution.getMillis();
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + length + resolution.unit + ":" + threshold;
+        }
+    }
+
+    public static int windowCount() { return windows.length; }
+
+    public static Window window(int index) { return windows[index]; }
+
+    /** How long a profile must go unvisited before none of the windows holds any of its visits. */
+    public static long durationMillis() {
+        long duration = 0L;
+        for (Window window : windows) {
+            duration = Math.max(duration, window.durationMillis());
+        }
+        return duration;
+    }
+
+    /**
+     * @return the frequent visitor status of a user in a window, from the flags returned by a visit
+     */
+    public static VisitResult resultOf(int visitFlags, int window) {
+        return VisitResult.of(((visitFlags >>> window) & 1) != 0, ((visitFlags >>> (16 + window)) & 1) != 0);
+    }
+
+    static int visitFlags(int frequentBefore, int frequentAfter) {
+        return frequentBefore | (frequentAfter << 16);
+    }
+
+    // Resolution levels; a profile keeps a visit bitmask per level
+
+    static int levelCount() { return levels.length; }
+
+    static Resolution level(int level) { return levels[level]; }
+
+    /** @return the number of intervals kept at the level, counting the one of the latest visit */
+    static int levelBits(int level) { return levelBits[level]; }
+
+    /**
+     * Add a visit to a profile's visit bitmasks.  Each bitmask moves forward if the visit is in a later interval
+     * than the last visit's, and is unchanged if it is in an interval too early to be kept.
+     */
+    static void addVisit(long[] visits, long lastVisitMillis, long visitMillis) {
+        for (int level = 0; level < levels.length; level++) {
+            Resolution resolution = levels[level];
+            visits[level] = addVisit(visits[level], resolution.index(lastVisitMillis), resolution.index(visitMillis),
+                    levelBits[level]);
+        }
+    }
+
+    /**
+     * Add a visit during the given interval to a visit bitmask, in which bit i is set when there was a visit
+     * i intervals before lastInterval.
+     */
+    static long addVisit(long bits, long lastInterval, long interval, int length) {
+        long age = lastInterval - interval;
+        if (age < 0) {
+            return slide(bits, -age, length) | 1L;
+        }
+        return (age < length) ? bits | (1L << age) : bits;
+    }
+
+    /**
+     * Merge the visit bitmasks of another profile of a user into the given ones, lining up the intervals of the
+     * two latest visits.  The result is relative to the later of them.
+     */
+    static void mergeVisits(long[] visits, long lastVisitMillis, long[] otherVisits, long otherLastVisitMillis) {
+        for (int level = 0; level < levels.length; level++) {
+            Resolution resolution = levels[level];
+            long elapsed = resolution.index(otherLastVisitMillis) - resolution.index(lastVisitMillis);
+            visits[level] = (elapsed >= 0)
+                    ? slide(visits[level], elapsed, levelBits[level]) | slide(otherVisits[level], 0, levelBits[level])
+                    : visits[level] | slide(otherVisits[level], -elapsed, levelBits[level]);
+        }
+    }
+
+    /** Shift a visit bitmask forward by the given number of intervals, dropping those that fall out of it. */
+    static long slide(long bits, long elapsed, int length) {
+        return (elapsed >= length) ? 0L : (bits << elapsed) & ((1L << length) - 1);
+    }
+
+    /** @return a flag for each window in which the visit bitmasks make the user a frequent visitor */
+    static int frequentWindows(long[] visits) {
+        int frequent = 0;
+        for (int i = 0; i < windows.length; i++) {
+            Window window = windows[i];
+            if (Long.bitCount(visits[window.level] & window.mask) >= window.threshold) {
+                frequent |= 1 << i;
+            }
+        }
+        return frequent;
+    }
+
+    /**
+     * @return a flag for each window in which the visit bitmasks come within the margin of the window's threshold;
+     *         a score of 1, which every visited session has, is never enough unless it is the threshold
+     */
+    static int candidateWindows(long[] visits, int margin) {
+        int candidate = 0;
+        for (int i = 0; i < windows.length; i++) {
+            Window window = windows[i];
+            int score = Math.min(window.threshold, Math.max(2, window.threshold - margin));
+            if (Long.bitCount(visits[window.level] & window.mask) >= score) {
+                candidate |= 1 << i;
+            }
+        }
+        return candidate;
+    }
+
+    /** @return the frequent windows, when there is only one level */
+    static int frequentWindows(long visits) {
+        int frequent = 0;
+        for (int i = 0; i < windows.length; i++) {
+            if (Long.bitCount(visits & windows[i].mask) >= windows[i].threshold) {
+                frequent |= 1 << i;
+            }
+        }
+        return frequent;
+    }
+
+    /** The windows as configured, for checking that a snapshot was written with the same ones. */
+    static String describe() {
+        StringBuilder description = new StringBuilder();
+        for (Window window : windows) {
+            if (description.length() > 0) {
+                description.append(',');
+            }
+            description.append(window);
+        }
+        return description.toString();
+    }
+
+    static Window[] parse(String specification) {
+        List<Window> parsed = new ArrayList<Window>();
+        for (String spec : specification.trim().split("\\s*,\\s*")) {
+            String name = null;
+            int equals = spec.indexOf('=');
+            if (equals >= 0) {
+                name = spec.substring(0, equals).trim();
+                spec = spec.substring(equals + 1).trim();
+            }
+            int colon = spec.indexOf(':');
+            if (colon < 2) {
+                throw new IllegalArgumentException("Visit window " + spec + " is not LENGTH UNIT:THRESHOLD");
+            }
+            Resolution resolution = null;
+            for (Resolution candidate : Resolution.values()) {
+                if (candidate.unit == spec.charAt(colon - 1)) {
+                    resolution = candidate;
+                }
+            }
+            int length;
+            int threshold;
+            try {
+                length = Integer.parseInt(spec.substring(0, colon - 1).trim());
+                threshold = Integer.parseInt(spec.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Visit window " + spec + " is not LENGTH UNIT:THRESHOLD", e);
+            }
+            if (resolution == null || length < 1 || length > MAX_LENGTH || threshold < 1 || threshold > length) {
+                throw new IllegalArgumentException("Visit window " + spec + " needs a unit of m, h, d or M, a length"
+                        + " of 1 to " + MAX_LENGTH + " and a threshold of 1 to the length");
+            }
+            parsed.add(new Window((name != null) ? name : spec.substring(0, colon), resolution, length, threshold));
+        }
+        if (parsed.size() > MAX_WINDOWS) {
+            throw new IllegalArgumentException("At most " + MAX_WINDOWS + " visit windows are supported");
+        }
+        return parsed.toArray(new Window[parsed.size()]);
+    }
+
+    // Calendar months in UTC, from days since the epoch and back, after Howard Hinnant's civil date algorithms
+
+    static long monthOfDay(long epochDay) {
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;     // March is 0
+        long month = (shiftedMonth < 10) ? shiftedMonth + 2 : shiftedMonth - 10;    // January is 0
+        long year = yearOfEra + era * 400 + ((month <= 1) ? 1 : 0);
+        return (year - 1970) * 12 + month;
+    }
+
+    static long dayOfMonth(long epochMonth) {
+        long year = 1970 + Math.floorDiv(epochMonth, 12);
+        long month = Math.floorMod(epochMonth, 12);         // January is 0
+        if (month <= 1) {
+            year--;
+        }
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * ((month >= 2) ? month - 2 : month + 10) + 2) / 5;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
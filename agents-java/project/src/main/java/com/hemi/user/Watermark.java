@@ -0,0 +1,54 @@
+/*
+ *  Copyright (c) 2017 Hemi Trickey; released under the "MIT license".
+ *  See the LICENSE file packaged with this software for details.
+ *
+ */
+
+package com.hemi.user;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How far event time has progressed in one stream of events, such as a shard.  The watermark trails the latest
+ * event time seen by the allowed lateness; events older than the watermark are too late to be counted.
+ *
+ * While any watermarks are registered with {@link UserProfiles}, profiles age by the slowest of them rather than
+ * by the wall clock, so a stream catching up on old events sees the same windows as it would have live.
+ */
+public class Watermark {
+    private final long allowedLatenessMillis;
+    private final AtomicLong latestEventMillis = new AtomicLong(Long.MIN_VALUE);
+
+    public Watermark(long allowedLatenessMillis) {
+        this.allowedLatenessMillis = allowedLatenessMillis;
+    }
+
+    /**
+     * Move the watermark forward to account for an event.  Events may be seen by several threads at once.
+     *
+     * @return false if the event is older than the watermark, and should be dropped
+     */
+    public boolean advance(long eventMillis) {
+        long latest = latestEventMillis.accumulateAndGet(eventMillis, Math::max);
+        return eventMillis >= latest - allowedLatenessMillis;
+    }
+
+    /**
+     * Move the watermark forward to account for an event which was held back to be retried while the latest event
+     * time seen was the given one, judging it by the watermark as it stood then rather than as it stands now.
+     *
+     * @return false if the event was already older than the watermark when held back, and should be dropped
+     */
+    public boolean advance(long eventMillis, long heldSinceLatestMillis) {
+        latestEventMillis.accumulateAndGet(eventMillis, Math::max);
+        return heldSinceLatestMillis == Long.MIN_VALUE || eventMillis >= heldSinceLatestMillis - allowedLatenessMillis;
+    }
+
+    /** @return the time of the latest event seen, or Long.MIN_VALUE if there has been none */
+    public long getLatestEventMillis() { return latestEventMillis.get(); }
+
+    public long getWatermarkMillis() {
+        long latest = latestEventMillis.get();
+        return (latest == Long.MIN_VALUE) ? Long.MIN_VALUE : latest - allowedLatenessMillis;
+    }
+}